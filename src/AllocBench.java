@@ -0,0 +1,135 @@
+/**
+    AllocBench.java
+    This class measures how many bytes the server allocates for each packet
+    it receives, with no buffer pool, with a pool of heap buffers and with a
+    pool of direct buffers. A server runs on a thread of its own in this
+    JVM, and a connection to it over loopback sends it full packets in
+    order, a window of them at a time, waiting for the ack of each window.
+    After a warm up, the JVM's count of bytes the server thread allocated
+    is divided by the packets it received.
+
+    java AllocBench [packets]
+*/
+import java.lang.management.ManagementFactory;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+
+public class AllocBench
+{
+    private static final int BURST = 32; // packets sent before waiting for their ack
+
+    private static DatagramSocket socket;
+    private static InetAddress host;
+    private static int port;
+    private static int connId;
+    private static int seqNum;
+    private static ByteBuffer buf = ByteBuffer.allocate(Packet.MTU);
+    private static DatagramPacket datagram = new DatagramPacket(buf.array(), Packet.MTU);
+
+    /**
+        run()
+        start a server and measure it
+        @param max - the most free buffers the server's pool keeps
+        @param direct - true for a pool of direct buffers
+        @param packets - how many packets to measure over
+        @return bytes allocated per packet
+    */
+    private static double run(int max, boolean direct, int packets) throws Exception
+    {
+        port = 30000 + new Random().nextInt(20000);
+        Server server = new Server(port);
+        server.setBufferPool(max, direct);
+        Thread thread = new Thread(new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    server.start();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(200);
+
+        socket = new DatagramSocket();
+        socket.setSoTimeout(2000);
+        host = InetAddress.getLoopbackAddress();
+        handshake();
+        send(packets); // warm up
+        com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long before = mx.getThreadAllocatedBytes(thread.getId());
+        send(packets);
+        long after = mx.getThreadAllocatedBytes(thread.getId());
+        socket.close();
+        return (double)(after - before) / packets;
+    }
+
+    // open a connection with the server
+    private static void handshake() throws Exception
+    {
+        seqNum = 0;
+        Packet syn = new Packet(0, 0, 0, 0, 1, 0, 0, null, 0);
+        syn.setWscale(0);
+        byte[] b = syn.getBytes();
+        socket.send(new DatagramPacket(b, b.length, host, port));
+        datagram.setLength(Packet.MTU);
+        socket.receive(datagram);
+        Packet synack = new Packet(buf, 0, datagram.getLength());
+        connId = synack.connId();
+        Packet ack = new Packet(0, synack.seqNum(), 1, 0, 0, 0, 0, null, 0);
+        ack.setConnId(connId);
+        b = ack.getBytes();
+        socket.send(new DatagramPacket(b, b.length, host, port));
+    }
+
+    // send full packets a burst at a time, waiting for each burst's ack
+    private static void send(int packets) throws Exception
+    {
+        ByteBuffer out = ByteBuffer.allocate(Packet.MTU);
+        DatagramPacket d = new DatagramPacket(out.array(), Packet.MTU, host, port);
+        for (int sent = 0; sent < packets; sent += BURST)
+        {
+            for (int i = 0; i < BURST; i++)
+            {
+                Packet p = new Packet(seqNum, out, Packet.maxHeaderLen, Packet.MSS);
+                p.setConnId(connId);
+                int start = p.writeHeader(out, Packet.maxHeaderLen);
+                d.setData(out.array(), start, Packet.maxHeaderLen + Packet.MSS - start);
+                socket.send(d);
+                seqNum += Packet.MSS;
+            }
+            // acks come every other packet, so the last one covers the burst
+            int acked;
+            do
+            {
+                datagram.setLength(Packet.MTU);
+                socket.receive(datagram);
+                acked = new Packet(buf, 0, datagram.getLength()).ackNum();
+            }
+            while (acked != seqNum);
+        }
+    }
+
+    /**
+        main method to run the benchmark
+    */
+    public static void main(String[] args) throws Exception
+    {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        System.out.printf("no pool       %8.1f bytes per packet%n", run(0, false, packets));
+        System.out.printf("heap pool     %8.1f bytes per packet%n", run(8192, false, packets));
+        System.out.printf("direct pool   %8.1f bytes per packet%n", run(8192, true, packets));
+    }
+}
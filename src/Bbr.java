@@ -0,0 +1,530 @@
+/**
+    Bbr.java
+    This class is BBR congestion control. Rather than treating loss as the
+    sign of congestion, it builds a model of the path from ack arrivals:
+    the bottleneck bandwidth, as the highest delivery rate over the last
+    ten round trips, and the round trip propagation time, as the lowest
+    rtt over the last ten seconds. It paces sends at the bandwidth estimate
+    and keeps about two bandwidth-delay products in flight, so random loss
+    on a radio link doesn't shrink the window.
+
+    It runs through four phases. STARTUP doubles the sending rate each round
+    until the bandwidth stops growing, DRAIN empties the queue that built up
+    doing so, PROBE_BW cycles the pacing rate a little above and below the
+    estimate to find more bandwidth, and PROBE_RTT drops the window to a few
+    packets for a moment now and then so the minimum rtt can be measured
+    again without a queue in the way.
+*/
+
+public class Bbr implements CongestionController
+{
+    private static final int STARTUP = 1;
+    private static final int DRAIN = 2;
+    private static final int PROBE_BW = 3;
+    private static final int PROBE_RTT = 4;
+
+    private static final double HIGH_GAIN = 2 / Math.log(2); // doubles the rate each round
+    private static final double DRAIN_GAIN = 1 / HIGH_GAIN;
+    private static final double CWND_GAIN = 2;
+    private static final double[] PACING_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final int BW_WINDOW = 10; // rounds the bandwidth filter covers
+    private static final long RTPROP_WINDOW = 10000000000L; // ns the rtt filter covers
+    private static final long PROBE_RTT_TIME = 200000000L; // ns to hold the window down
+    private static final int AGG_ROUNDS = 5; // rounds each half of the aggregation filter covers
+
+    private int mode = STARTUP;
+    private double pacingGain = HIGH_GAIN;
+    private double cwndGain = HIGH_GAIN;
+    private int mss = Packet.MSS; // the segment size
+    private int minCwnd = 4 * Packet.MSS;
+    private int initialCwnd = 10 * Packet.MSS;
+    private int cwnd = initialCwnd;
+    private double pacingRate = 0; // bytes per second, 0 until there is an rtt
+
+    private double[] bwByRound = new double[BW_WINDOW]; // the best rate seen in each recent round
+    private long roundCount = 0;
+    private long nextRoundDelivered = 0; // a packet sent after this much was delivered starts a round
+    private boolean roundStart = false;
+
+    private long rtProp = 0; // the minimum rtt in ns, 0 for none yet
+    private long rtPropStamp = 0; // when it was measured
+    private boolean rtPropExpired = false;
+
+    private double fullBw = 0; // the bandwidth when it last grew by a quarter
+    private int fullBwCount = 0; // rounds since then
+    private boolean filledPipe = false;
+
+    private int cycleIndex = 0;
+    private long cycleStamp = 0;
+
+    private long probeRttDone = 0; // when PROBE_RTT can end, 0 until the window is down
+    private boolean probeRttRoundDone = false;
+    private int priorCwnd = 0; // the window before PROBE_RTT or recovery
+
+    private boolean recovery = false;
+    private boolean conservation = false; // only send what is delivered, for the first round of recovery
+    private long totalDelivered = 0;
+
+    private long ackEpochStart = 0; // when acks last fell behind the bandwidth estimate
+    private long ackEpochAcked = 0; // bytes ack'd since then
+    private int[] extraAcked = new int[2]; // the most ack'd beyond the estimate, over two spans of rounds
+    private int extraAckedIdx = 0;
+    private long extraAckedRound = 0; // the round the current span began
+
+    /**
+        connected()
+        size the windows in segments. BBR doesn't use a slow start threshold
+        @param maxWindow - the largest window the server can advertise
+        @param mss - the segment size
+    */
+    public void connected(int maxWindow, int mss)
+    {
+        this.mss = mss;
+        minCwnd = 4 * mss;
+        initialCwnd = 10 * mss;
+        cwnd = initialCwnd;
+    }
+
+    /**
+        onAck()
+        the ack that ends recovery gives back the window from before it
+        @param acked - how many new bytes the ack covered
+    */
+    public void onAck(int acked)
+    {
+        if (recovery)
+        {
+            recovery = false;
+            conservation = false;
+            cwnd = Math.max(cwnd, priorCwnd);
+        }
+    }
+
+    /**
+        onLoss()
+        go into recovery. the window comes down to what is still in flight,
+        and for a round only as much more is sent as is delivered (packet
+        conservation), but the model is left alone: random loss isn't
+        congestion.
+        @param inFlight - bytes still in the network
+        @param acked - bytes the ack that found the loss delivered
+    */
+    public void onLoss(int inFlight, int acked)
+    {
+        priorCwnd = saveCwnd();
+        cwnd = Math.max(inFlight + Math.max(acked, mss), minCwnd);
+        recovery = true;
+        conservation = true;
+        nextRoundDelivered = totalDelivered;
+    }
+
+    /**
+        onTimeout()
+        start again from a small window. the model is kept, so the window
+        grows straight back to it.
+    */
+    public void onTimeout()
+    {
+        priorCwnd = saveCwnd();
+        recovery = false;
+        conservation = false;
+        cwnd = minCwnd;
+    }
+
+    /**
+        onUndo()
+        give back the window from before the last timeout
+    */
+    public void onUndo()
+    {
+        cwnd = Math.max(cwnd, priorCwnd);
+    }
+
+    /**
+        onRttSample()
+        keep the minimum rtt, and see if it is time to measure it again
+        @param rtt - the round trip time in ms
+    */
+    public void onRttSample(double rtt)
+    {
+        long now = System.nanoTime();
+        long r = (long)(rtt * 1e6);
+        rtPropExpired = rtProp != 0 && now - rtPropStamp > RTPROP_WINDOW;
+        if (rtProp == 0 || r <= rtProp || rtPropExpired)
+        {
+            rtProp = r;
+            rtPropStamp = now;
+        }
+        if (pacingRate == 0)
+        {
+            // no bandwidth estimate yet; start at the initial window per rtt
+            pacingRate = HIGH_GAIN * initialCwnd / (rtProp / 1e9);
+        }
+    }
+
+    /**
+        onDelaySample()
+        BBR doesn't use one way delays
+    */
+    public void onDelaySample(int delay){}
+
+    /**
+        onRateSample()
+        update the model with a delivery rate sample, move between phases,
+        and work out the pacing rate and window
+        @param rs - the sample for this ack
+        @param inFlight - bytes in flight after the ack
+    */
+    public void onRateSample(RateSampler.Sample rs, int inFlight)
+    {
+        if (rs.newlyDelivered() == 0)
+        {
+            return;
+        }
+        totalDelivered = rs.totalDelivered();
+        long now = System.nanoTime();
+        updateRound(rs);
+        updateBw(rs);
+        checkFullPipe(rs);
+        checkDrain(inFlight, now);
+        updateCycle(inFlight, now);
+        checkProbeRtt(inFlight, now);
+        updateAckAggregation(rs.newlyDelivered(), now);
+        setPacingRate();
+        setCwnd(rs.newlyDelivered(), inFlight);
+    }
+
+    /**
+        updateRound()
+        a round trip has passed once a packet sent after the last round
+        started is delivered
+    */
+    private void updateRound(RateSampler.Sample rs)
+    {
+        roundStart = false;
+        if (rs.priorDelivered() >= nextRoundDelivered)
+        {
+            nextRoundDelivered = rs.totalDelivered();
+            roundCount++;
+            roundStart = true;
+            bwByRound[(int)(roundCount % BW_WINDOW)] = 0;
+            conservation = false;
+        }
+    }
+
+    /**
+        updateBw()
+        put a rate sample in the bandwidth filter. a sample taken while the
+        client was out of data only counts if it raises the estimate.
+    */
+    private void updateBw(RateSampler.Sample rs)
+    {
+        if (!rs.valid())
+        {
+            return;
+        }
+        double rate = rs.rate();
+        if (rs.appLimited() && rate < btlBw())
+        {
+            return;
+        }
+        int slot = (int)(roundCount % BW_WINDOW);
+        if (rate > bwByRound[slot])
+        {
+            bwByRound[slot] = rate;
+        }
+    }
+
+    /**
+        btlBw()
+        get the bottleneck bandwidth estimate in bytes per second
+    */
+    private double btlBw()
+    {
+        double max = 0;
+        for (double b : bwByRound)
+        {
+            if (b > max)
+            {
+                max = b;
+            }
+        }
+        return max;
+    }
+
+    /**
+        checkFullPipe()
+        the pipe is full once three rounds in a row don't raise the
+        bandwidth by a quarter
+    */
+    private void checkFullPipe(RateSampler.Sample rs)
+    {
+        if (filledPipe || !roundStart || rs.appLimited())
+        {
+            return;
+        }
+        if (btlBw() >= fullBw * 1.25)
+        {
+            fullBw = btlBw();
+            fullBwCount = 0;
+            return;
+        }
+        if (++fullBwCount >= 3)
+        {
+            filledPipe = true;
+        }
+    }
+
+    /**
+        checkDrain()
+        leave STARTUP for DRAIN once the pipe is full, and DRAIN for
+        PROBE_BW once the queue it left is gone
+    */
+    private void checkDrain(int inFlight, long now)
+    {
+        if (mode == STARTUP && filledPipe)
+        {
+            mode = DRAIN;
+            pacingGain = DRAIN_GAIN;
+            cwndGain = HIGH_GAIN;
+        }
+        if (mode == DRAIN && inFlight <= inflight(1.0))
+        {
+            enterProbeBw(now);
+        }
+    }
+
+    // start cycling the pacing gain, at a random phase other than the one that drains
+    private void enterProbeBw(long now)
+    {
+        mode = PROBE_BW;
+        cwndGain = CWND_GAIN;
+        cycleIndex = (int)(Math.random() * (PACING_GAINS.length - 1));
+        if (cycleIndex >= 1)
+        {
+            cycleIndex++;
+        }
+        cycleStamp = now;
+        pacingGain = PACING_GAINS[cycleIndex];
+    }
+
+    /**
+        updateCycle()
+        move to the next gain in PROBE_BW. each lasts about a minimum rtt,
+        but probing up goes on until the extra data is actually in flight,
+        and probing down ends as soon as the queue is gone.
+    */
+    private void updateCycle(int inFlight, long now)
+    {
+        if (mode != PROBE_BW)
+        {
+            return;
+        }
+        boolean elapsed = now - cycleStamp > rtProp;
+        boolean next;
+        if (pacingGain > 1)
+        {
+            next = elapsed && inFlight >= inflight(pacingGain);
+        }
+        else if (pacingGain < 1)
+        {
+            next = elapsed || inFlight <= inflight(1.0);
+        }
+        else
+        {
+            next = elapsed;
+        }
+        if (next)
+        {
+            cycleIndex = (cycleIndex + 1) % PACING_GAINS.length;
+            cycleStamp = now;
+            pacingGain = PACING_GAINS[cycleIndex];
+        }
+    }
+
+    /**
+        checkProbeRtt()
+        go to PROBE_RTT when the minimum rtt hasn't been seen for ten
+        seconds. once the window is down, stay there at least 200ms and a
+        round trip, then go back to what we were doing.
+    */
+    private void checkProbeRtt(int inFlight, long now)
+    {
+        if (mode != PROBE_RTT && rtPropExpired)
+        {
+            mode = PROBE_RTT;
+            pacingGain = 1;
+            cwndGain = 1;
+            priorCwnd = saveCwnd();
+            probeRttDone = 0;
+        }
+        if (mode != PROBE_RTT)
+        {
+            return;
+        }
+        if (probeRttDone == 0 && inFlight <= minCwnd)
+        {
+            probeRttDone = now + PROBE_RTT_TIME;
+            probeRttRoundDone = false;
+            nextRoundDelivered = totalDelivered;
+        }
+        else if (probeRttDone != 0)
+        {
+            if (roundStart)
+            {
+                probeRttRoundDone = true;
+            }
+            if (probeRttRoundDone && now - probeRttDone > 0)
+            {
+                rtPropStamp = now;
+                rtPropExpired = false;
+                cwnd = Math.max(cwnd, priorCwnd);
+                if (filledPipe)
+                {
+                    enterProbeBw(now);
+                }
+                else
+                {
+                    mode = STARTUP;
+                    pacingGain = HIGH_GAIN;
+                    cwndGain = HIGH_GAIN;
+                }
+            }
+        }
+    }
+
+    /**
+        updateAckAggregation()
+        measure how far acks run ahead of the bandwidth estimate. when acks
+        are delayed and then arrive in bursts (delayed acks, or a path whose
+        delay jumps around) the window needs that much more room, or the
+        sender stalls waiting for acks the model says should already be back.
+        @param acked - bytes this ack delivered
+        @param now - the current System.nanoTime()
+    */
+    private void updateAckAggregation(int acked, long now)
+    {
+        if (roundStart && roundCount - extraAckedRound >= AGG_ROUNDS)
+        {
+            extraAckedRound = roundCount;
+            extraAckedIdx = 1 - extraAckedIdx;
+            extraAcked[extraAckedIdx] = 0;
+        }
+        double expected = btlBw() * (now - ackEpochStart) / 1e9;
+        if (ackEpochStart == 0 || ackEpochAcked <= expected)
+        {
+            // acks are no faster than the estimate; start measuring again
+            ackEpochStart = now;
+            ackEpochAcked = 0;
+            expected = 0;
+        }
+        ackEpochAcked += acked;
+        int extra = (int)Math.min(ackEpochAcked - expected, cwnd);
+        if (extra > extraAcked[extraAckedIdx])
+        {
+            extraAcked[extraAckedIdx] = extra;
+        }
+    }
+
+    /**
+        setPacingRate()
+        pace at the gain times the bandwidth. until the pipe is full the
+        rate is never lowered, since early samples are too small.
+    */
+    private void setPacingRate()
+    {
+        double rate = pacingGain * btlBw();
+        if (rate > 0 && (filledPipe || rate > pacingRate))
+        {
+            pacingRate = rate;
+        }
+    }
+
+    /**
+        setCwnd()
+        grow the window towards the gain times the bandwidth-delay product,
+        plus room for acks that come back in bursts
+        @param acked - bytes this ack delivered
+        @param inFlight - bytes in flight after the ack
+    */
+    private void setCwnd(int acked, int inFlight)
+    {
+        int target = inflight(cwndGain);
+        if (filledPipe)
+        {
+            target += Math.max(extraAcked[0], extraAcked[1]);
+        }
+        if (conservation)
+        {
+            cwnd = Math.max(cwnd, inFlight + acked);
+        }
+        else if (filledPipe)
+        {
+            cwnd = Math.min(cwnd + acked, target);
+        }
+        else if (cwnd < target || totalDelivered < initialCwnd)
+        {
+            cwnd += acked;
+        }
+        if (cwnd < minCwnd)
+        {
+            cwnd = minCwnd;
+        }
+        if (mode == PROBE_RTT && cwnd > minCwnd)
+        {
+            cwnd = minCwnd;
+        }
+    }
+
+    /**
+        inflight()
+        get the bandwidth-delay product times a gain, in bytes, with room
+        for a few packets more so delayed acks don't hold the sender back
+        @param gain - the gain
+    */
+    private int inflight(double gain)
+    {
+        double bw = btlBw();
+        if (bw == 0 || rtProp == 0)
+        {
+            return initialCwnd;
+        }
+        return (int)(gain * bw * rtProp / 1e9) + 3 * mss;
+    }
+
+    // the window to go back to after recovery or PROBE_RTT
+    private int saveCwnd()
+    {
+        return recovery || mode == PROBE_RTT ? Math.max(priorCwnd, cwnd) : cwnd;
+    }
+
+    /**
+        pacingRate()
+        get the rate to pace sends at
+        @return bytes per second, or 0 before there is an rtt
+    */
+    public long pacingRate(){return (long)pacingRate;}
+
+    public boolean usesPrr(){return false;} // the window follows what is delivered instead
+    public boolean inRecovery(){return recovery;}
+    public int cwnd(){return cwnd;}
+    public int ssthresh(){return Integer.MAX_VALUE;}
+
+    /**
+        state()
+        get the name of the phase
+    */
+    public String state()
+    {
+        if (recovery)
+            return "Fast recovery";
+        else if (mode == STARTUP)
+            return "Startup";
+        else if (mode == DRAIN)
+            return "Drain";
+        else if (mode == PROBE_BW)
+            return "Probe bandwidth";
+        else
+            return "Probe rtt";
+    }
+}
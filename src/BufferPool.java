@@ -0,0 +1,77 @@
+/**
+    BufferPool.java
+    This class keeps buffers of one size for reuse, so that sending and
+    receiving a packet doesn't allocate one each time. get() hands out a
+    free buffer, or a new one if none is free, and put() takes one back once
+    nothing refers to it any more. At most a fixed number of free buffers
+    are kept; any more put back are left for the garbage collector, so a
+    burst doesn't hold on to memory for good.
+
+    The buffers can be direct, outside the Java heap, which a DatagramChannel
+    can read into without copying. Only the server uses a pool. The client
+    keeps no payloads, so it needs none: it reads each payload from the
+    file into its one send buffer.
+*/
+import java.nio.ByteBuffer;
+
+import java.util.ArrayDeque;
+
+public class BufferPool
+{
+    private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private int size; // bytes in each buffer
+    private int max; // the most free buffers to keep
+    private boolean direct;
+    private long allocated = 0; // how many buffers have been made
+
+    /**
+        BufferPool()
+        create an empty pool
+        @param size - the size of each buffer in bytes
+        @param max - the most free buffers to keep, 0 to keep none
+        @param direct - true to make direct buffers
+    */
+    public BufferPool(int size, int max, boolean direct)
+    {
+        this.size = size;
+        this.max = max;
+        this.direct = direct;
+    }
+
+    /**
+        get()
+        take a buffer from the pool, making one if the pool is empty. its
+        position is 0 and its limit its capacity.
+        @return the buffer
+    */
+    public synchronized ByteBuffer get()
+    {
+        ByteBuffer b = free.pollFirst();
+        if (b == null)
+        {
+            allocated++;
+            b = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        return b;
+    }
+
+    /**
+        put()
+        give a buffer back. the buffer must not be used after this.
+        @param b - a buffer from get(), or null for none
+    */
+    public synchronized void put(ByteBuffer b)
+    {
+        if (b == null || b.capacity() != size || free.size() >= max)
+        {
+            return;
+        }
+        b.clear();
+        // the most recently used buffer is the likeliest to still be cached
+        free.addFirst(b);
+    }
+
+    public synchronized long allocated(){return allocated;}
+    public synchronized int available(){return free.size();}
+    public boolean direct(){return direct;}
+}
@@ -0,0 +1,116 @@
+/**
+    ChecksumBench.java
+    This class measures how fast Packet sums bytes for its checksum, on one
+    thread, against summing a 16 bit word at a time and against the CRC32C
+    that can be agreed in its place. Each is given as GB/s and as the time
+    to check one packet of that size. Each size is warmed up first so the
+    JIT has compiled the loops, then timed for a few seconds. The two sums
+    are also checked against each other on random data.
+
+    java ChecksumBench [seconds per size]
+*/
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class ChecksumBench
+{
+    private static final int[] SIZES = {Packet.headerLen, Packet.MTU, 64 * 1024};
+
+    private static final int WIDE = 0; // Packet's sum, 8 bytes at a time
+    private static final int WORD = 1; // a 16 bit word at a time
+    private static final int CRC = 2; // Packet's CRC32C
+    private static final String[] NAMES = {"checksum, 8 bytes at a time", "checksum, 2 bytes at a time", "CRC32C"};
+
+    private static volatile int sink; // keeps the sums from being optimized away
+
+    /**
+        wordSum()
+        the one's complement sum done a 16 bit word at a time, to compare with
+        @param bytes - the bytes
+        @param len - how many bytes to sum
+    */
+    private static int wordSum(byte[] bytes, int len)
+    {
+        long sum = 0;
+        int i = 0;
+        for (; i + 2 <= len; i += 2)
+        {
+            sum += ((bytes[i] & 0xff) << 8) | (bytes[i+1] & 0xff);
+        }
+        if (i < len)
+        {
+            sum += (bytes[i] & 0xff) << 8;
+        }
+        while ((sum >>> 16) != 0)
+        {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int)sum;
+    }
+
+    /**
+        run()
+        sum a buffer over and over for a while
+        @param bytes - the buffer
+        @param mode - WIDE, WORD or CRC
+        @param nanos - how long to run
+        @return ns per sum
+    */
+    private static double run(byte[] bytes, int mode, long nanos)
+    {
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        long start = System.nanoTime();
+        long sums = 0;
+        long elapsed;
+        int s = 0;
+        do
+        {
+            // check the clock only every so often
+            for (int i = 0; i < 1024; i++)
+            {
+                if (mode == WIDE)
+                    s += Packet.sum(b, 0, bytes.length);
+                else if (mode == WORD)
+                    s += wordSum(bytes, bytes.length);
+                else
+                    s += Packet.crc32c(b, 0, bytes.length);
+            }
+            sums += 1024;
+            elapsed = System.nanoTime() - start;
+        }
+        while (elapsed < nanos);
+        sink = s;
+        return (double)elapsed / sums;
+    }
+
+    /**
+        main method to run the benchmark
+    */
+    public static void main(String[] args)
+    {
+        long nanos = (args.length > 0 ? Long.parseLong(args[0]) : 3) * 1000000000L;
+        Random rand = new Random(1);
+        for (int n = 1; n < 2000; n++)
+        {
+            byte[] b = new byte[n];
+            rand.nextBytes(b);
+            if (Packet.sum(ByteBuffer.wrap(b), 0, n) != wordSum(b, n))
+            {
+                System.out.println("sums differ for "+n+" bytes");
+                return;
+            }
+        }
+        for (int size : SIZES)
+        {
+            byte[] bytes = new byte[size];
+            rand.nextBytes(bytes);
+            System.out.println(size+" bytes:");
+            for (int mode = WIDE; mode <= CRC; mode++)
+            {
+                run(bytes, mode, nanos / 3);
+                double ns = run(bytes, mode, nanos);
+                System.out.printf("  %-28s %6.2f GB/s %8.1f ns per packet%n", NAMES[mode], size / ns, ns);
+            }
+        }
+    }
+}
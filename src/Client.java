@@ -4,7 +4,6 @@
 
     This class provides the main functionality of the client side of fcntcp.
 */
-import java.io.FileInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -16,16 +15,19 @@ import java.net.UnknownHostException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Client
 {
-    private static final int SLOW_START = 1;
-    private static final int CONG_AVOID = 2;
-    private static final int FAST_REC =   3;
-    private static final int HANDSHAKE =  4;
-    private int congestionState = SLOW_START;
+    private static final long PACING_CREDIT = 1000000; // ns of sending a paced client may catch up on
+    private static final int MAX_PROBES = 3; // unanswered probes before a segment size is given up on
+    private static final int[] PROBE_MTUS = {65535, 9000, 1500}; // loopback, jumbo frames, Ethernet
+    private static final int ACK_DELAY = 40; // ms the server holds an ack back for at most, by default
 
     private double chanceToDropPackets = 0.1;
     private double packetDelay = 1100;
@@ -33,42 +35,92 @@ public class Client
     private InetAddress server;
     private int port;
     private String file;
-    private int timeout;
+    private RtoEstimator rto; // the retransmission timeout
+    private CongestionController cc = new Reno(); // decides the congestion window
 
-    private int cwnd = 2 * Packet.MSS; 
     private int rwnd = Integer.MAX_VALUE;
-    private int ssthresh = 64000; // slow start threshold of 64k
 
     private int bytesInFlight = 0; // how many bytesInFlight are in flight
     private int seqNum = 0; // sequence num of outgoing packets
     private int lastAck = 0; // last ack number received
     private int dupAcks = 0; // how many times the last ack has been repeated
+    private int held = 0; // without SACK, bytes duplicate acks say the server holds out of order
+    private int recover = 0; // one past the last byte sent when recovery began or the last timeout fired
+    private int recoverFs = 0; // bytes outstanding when recovery began
+    private int prrDelivered = 0; // bytes delivered since recovery began
+    private int prrOut = 0; // bytes sent since recovery began
+    private int sndcnt = 0; // bytes recovery may still send for the ack being handled
+    private boolean undoPending = false; // the last timeout may yet turn out spurious
+    private int undoSeq = -1; // the packet the last timeout gave up on
+    private int undoCopies = 0; // how many times it had been sent by then
+    private long undoAt = 0; // when that timeout fired, in ns
+    private int undoRecover = 0; // recover from before that timeout
     private boolean finished = false;
     private boolean connected = false;
-    private int finalByte = -1;
+    private int synsSent = 0; // how many times we have sent a SYN
+    private int connId = 0; // the connection id the server gave us
+    private boolean windowScaling = true; // offer window scaling in the SYN
+    private int windowShift = 0; // how far to scale up the server's window
+    private boolean sack = true; // offer SACK in the SYN
+    private boolean sackEnabled = false; // the server agreed to send SACK blocks
+    private boolean timestamps = true; // offer timestamps in the SYN
+    private boolean tsEnabled = false; // the server agreed to timestamps
+    private boolean echoed = false; // the ack being handled echoes one of our timestamps
+    private int echo = 0; // the timestamp it echoes
+    private int serverTs = 0; // the server's own timestamp on it
+    private boolean crc32c = false; // offer CRC32C in the SYN
+    private boolean crcEnabled = false; // the server agreed to CRC32C
+    private boolean treeHash = false; // offer to sum the file as a tree in the SYN
+    private boolean treeEnabled = false; // the server agreed to a tree hash
+    private ForkJoinTask<byte[]> treeRoot; // the file's tree hash, sent in the FIN
+    private int maxMss = Packet.MSS; // the largest segment to offer in the SYN
+    private int mss = Packet.MSS; // the segment size, once agreed and probed
+    private boolean mssPending = false; // the server may not have heard the probed segment size yet
+    private int highSacked = 0; // one past the highest byte the server has SACK'd
+    private long rackSentAt = 0; // when the last sent of the packets known delivered was sent, in ns
+    private int rackEnd = 0; // one past its last byte
+    private long rackRtt = 0; // its round trip time, in ns
+    private boolean reordering = false; // a packet was delivered after one sent later
+    private long lossTimerAt = 0; // System.nanoTime() the reorder timer or tail loss probe is due, 0 for neither
+    private boolean probeTimer = false; // the loss timer is for a tail loss probe, not the reorder timer
+    private boolean probePending = false; // a tail loss probe's retransmission hasn't been ack'd yet
+    private int probeSeq = 0; // the packet it resent
+    private Packet tail = null; // the last new packet sent
+    private int nextLost = 0; // where to look for the next packet given up on
+    private RateSampler rate = new RateSampler(); // measures the delivery rate
+    private long minRtt = 0; // the smallest rtt seen in ns, 0 for none
+    private long nextSend = 0; // System.nanoTime() the pacing rate lets the next packet go at
 
     private DatagramSocket socket;
 
-    private LinkedList<Packet> packets; // the outgoing packets queue
-    private LinkedList<TimeoutTimer> timeouts; // the timeouts for all sent packets
+    private SendScoreboard packets; // the sent packets that are not ack'd yet
+    private ByteBuffer sendBuf; // every packet sent is written here
+    private TimingWheel timeouts; // the timeouts for all sent packets
+    private Pacer pacer; // wakes the client when pacing held a packet back, or for the loss timer
     private PacketListener listener; // a listener for incoming messages
     private Thread listenerThread; // a thread to run the listener
-    private FileInputStream instream; // filestream to read the file we send
+    private FileSource source; // the file we send
 
     /**
         Client()
 
         Constructor to create a new client object
+        @param s - the server address
+        @param p - the server port
+        @param f - the file to send
+        @param t - a fixed retransmission timeout in ms, or -1 to estimate it
+            from the round trip time
     */
     public Client(String s, int p, String f, int t) throws UnknownHostException
     {
         server = InetAddress.getByName(s);
         port = p;
         file = f;
-        timeout = t;
+        rto = new RtoEstimator(TimingWheel.DEFAULT_TICK);
+        rto.setFixed(t);
 
-        packets = new LinkedList<Packet>();
-        timeouts = new LinkedList<TimeoutTimer>();
+        timeouts = new TimingWheel(this, TimingWheel.DEFAULT_TICK, TimingWheel.DEFAULT_SIZE);
+        pacer = new Pacer(this);
     }
 
     /**
@@ -78,15 +130,33 @@ public class Client
     */
     public synchronized void start() throws FileNotFoundException, SocketException, IOException, InterruptedException
     {
-        instream = new FileInputStream(new File(file));
+        source = new FileSource(file);
+        source.setReadyAction(this::sourceReady);
         socket = new DatagramSocket();
-        listener = new PacketListener(this);
-        listenerThread = new Thread(listener);
-        listenerThread.start();
+        if (treeHash && !new File(file).isFile())
+        {
+            // the tree is hashed from the file while it is sent
+            print("Can't tree hash what isn't a file, the server will use MD5");
+            treeHash = false;
+        }
         while (!connected)
         {
             connected = handshake();
         }
+        if (treeEnabled)
+        {
+            treeRoot = TreeHash.of(file, ForkJoinPool.commonPool());
+        }
+        cc.connected(Packet.maxWindow << windowShift, mss);
+        source.setSegmentSize(mss);
+        packets = new SendScoreboard(64, mss);
+        sendBuf = ByteBuffer.allocate(mss + Packet.maxHeaderLen);
+        // the handshake reads the socket itself, so only listen once it's done
+        listener = new PacketListener(this);
+        listenerThread = new Thread(listener);
+        listenerThread.start();
+        timeouts.start();
+        pacer.start();
         sendNext();
     }
 
@@ -107,18 +177,67 @@ public class Client
                 ,0 // window
                 ,null,0 // data, dataLen
             );
+            if (windowScaling)
+            {
+                // we never receive data, so our own window needs no scaling
+                syn.setWscale(0);
+            }
+            if (sack)
+            {
+                syn.setSackPermitted();
+            }
+            if (timestamps)
+            {
+                syn.setTimestamps(NetworkServices.timestamp(), 0);
+            }
+            if (crc32c)
+            {
+                syn.setAltChecksum(Packet.CHECKSUM_CRC32C);
+            }
+            if (treeHash)
+            {
+                syn.setTreeHash(TreeHash.CHUNK_SHIFT);
+            }
+            syn.setMss(maxMss);
             byte[] data = syn.getBytes();
             DatagramPacket datagram = new DatagramPacket(data, data.length, server, port);
+            long sentAt = System.nanoTime();
             socket.send(datagram);
+            synsSent++;
             // receive SYNACK
-            socket.setSoTimeout(2 * timeout);
-            data = new byte[Packet.headerLen];
+            socket.setSoTimeout(2 * rto.get());
+            data = new byte[Packet.maxHeaderLen];
             datagram = new DatagramPacket(data, data.length);
             socket.receive(datagram);
             socket.setSoTimeout(0);
-            Packet synack = new Packet(datagram.getData());
+            Packet synack = new Packet(datagram.getData(), datagram.getLength());
             if (synack.checksum() && synack.syn() && synack.ack())
             {
+                // the SYN's round trip is the first rtt sample, if it was sent once
+                if (synsSent == 1)
+                {
+                    rttSample((System.nanoTime() - sentAt) / 1e6);
+                }
+                // window scaling is on only if both sides asked for it
+                windowShift = windowScaling && synack.wscale() >= 0 ? synack.wscale() : 0;
+                rwnd = synack.window();
+                sackEnabled = sack && synack.sackPermitted();
+                tsEnabled = timestamps && synack.timestamps();
+                crcEnabled = crc32c && synack.altChecksum() == Packet.CHECKSUM_CRC32C;
+                treeEnabled = treeHash && synack.treeHash() == TreeHash.CHUNK_SHIFT;
+                if (crcEnabled)
+                {
+                    printv("Using CRC32C in place of the checksum");
+                }
+                connId = synack.connId();
+                // the server says how much of what we offered it takes,
+                // and then the path has its say
+                mss = synack.mss() > 0 ? Math.min(synack.mss(), maxMss) : Packet.MSS;
+                if (mss > Packet.MSS)
+                {
+                    mss = searchMss();
+                    print("Segment size "+mss);
+                }
                 // send ACK
                 Packet ack = new Packet(
                     seqNum // seqNum
@@ -127,6 +246,20 @@ public class Client
                     ,0  // window
                     ,null,0 // data, dataLen
                 );
+                ack.setConnId(connId);
+                ack.setCrc(crcEnabled);
+                if (tsEnabled)
+                {
+                    ack.setTimestamps(NetworkServices.timestamp(), synack.tsVal());
+                }
+                if (synack.mss() > 0)
+                {
+                    // the server sizes its reorder buffer from what we settled
+                    // on. data repeats it until something is ack'd, in case
+                    // this is lost
+                    ack.setMss(mss);
+                    mssPending = true;
+                }
                 data = ack.getBytes();
                 datagram = new DatagramPacket(data, data.length, server, port);
                 socket.send(datagram);
@@ -139,6 +272,74 @@ public class Client
         return false;
     }
 
+    /**
+        searchMss()
+        find the largest segment the path delivers, by packetization layer
+        path MTU discovery (RFC 4821, RFC 8899). a probe is padded out to a
+        segment size and the server acks it on its own, without it counting
+        as data, so a probe lost for being too big costs nothing but the
+        wait. the agreed segment size is tried first, then the segments the
+        usual link MTUs carry, largest first, as RFC 4821 section 7.3.2
+        suggests, so a loopback or jumbo frame path is found in a round trip.
+        a size is given up on after a few probes go unanswered.
+        @return the segment size to use
+    */
+    private int searchMss() throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(mss + Packet.maxHeaderLen);
+        ByteBuffer in = ByteBuffer.allocate(Packet.MTU);
+        DatagramPacket reply = new DatagramPacket(in.array(), Packet.MTU);
+        int size = mss;
+        int next = 0; // the next of the link MTUs to try
+        while (size > Packet.MSS)
+        {
+            for (int tries = 0; tries < MAX_PROBES; tries++)
+            {
+                // the padding is zeros, so the same buffer does for every probe
+                Packet probe = new Packet(seqNum, buf, Packet.maxHeaderLen, size);
+                probe.setConnId(connId);
+                probe.setCrc(crcEnabled);
+                probe.setProbe(size);
+                int start = probe.writeHeader(buf, Packet.maxHeaderLen);
+                socket.send(new DatagramPacket(buf.array(), start,
+                    Packet.maxHeaderLen + size - start, server, port));
+                printv("Probing with a "+size+" byte segment");
+                long deadline = System.currentTimeMillis() + rto.get();
+                try
+                {
+                    long wait;
+                    while ((wait = deadline - System.currentTimeMillis()) > 0)
+                    {
+                        socket.setSoTimeout((int)wait);
+                        reply.setLength(Packet.MTU);
+                        socket.receive(reply);
+                        Packet p = new Packet(in, 0, reply.getLength());
+                        if (valid(p) && p.probe() == size)
+                        {
+                            socket.setSoTimeout(0);
+                            return size;
+                        }
+                    }
+                }
+                catch (SocketTimeoutException e){}
+            }
+            // the next smaller size a common link carries
+            while (next < PROBE_MTUS.length && linkMss(PROBE_MTUS[next]) >= size)
+            {
+                next++;
+            }
+            size = next < PROBE_MTUS.length ? linkMss(PROBE_MTUS[next]) : Packet.MSS;
+        }
+        socket.setSoTimeout(0);
+        return Packet.MSS;
+    }
+
+    // the segment that fits in a link MTU, in a UDP datagram over IPv4
+    private static int linkMss(int mtu)
+    {
+        return mtu - 28 - Packet.maxHeaderLen;
+    }
+
     /**
         sendNext()
         send the next packets if possible. 
@@ -149,36 +350,128 @@ public class Client
         {
             return;
         }
-        int maxBytes = rwnd < cwnd ? rwnd : cwnd - Packet.MSS;
-        printv("max bytes is "+maxBytes+" and bytes in flight is "+bytesInFlight);
-        while (instream != null && bytesInFlight < maxBytes)
+        printv("max bytes is "+maxBytes()+" and bytes in flight is "+bytesInFlight);
+        // packets given up on, after a timeout or as holes, go before new data
+        if (nextLost - lastAck < 0)
+        {
+            nextLost = lastAck;
+        }
+        while (nextLost - seqNum < 0 && room() && !pacing())
         {
-            byte[] data = new byte[Packet.MSS];
-            int bytesRead = instream.read(data);
-            if (bytesRead != -1 )
+            Packet p = packets.get(nextLost);
+            if (p == null)
             {
-                Packet p = new Packet(
-                     seqNum //seq number
-                    ,0 // ack number
-                    ,0,0,0,0 // ack,rst,syn,fin flags
-                    ,0 // window
-                    ,data // data
-                    ,bytesRead // data len
-                );
-                seqNum += bytesRead;
+                break;
+            }
+            if (p.lost())
+            {
+                printv("Resending lost packet "+nextLost);
+                sendPacket(p);
+            }
+            nextLost += p.dataLen();
+        }
+        boolean starved = false; // a pipe hasn't given us the next chunk yet
+        while (!source.atEnd() && !starved && room() && !pacing())
+        {
+            Packet p = source.next(seqNum);
+            if (p != null)
+            {
+                seqNum += p.dataLen();
                 printv("Sending new packet");
                 sendPacket(p);
-                bytesInFlight += bytesRead;
+                bytesInFlight += p.dataLen();
+                tail = p;
+            }
+            else if (source.atEnd())
+            {
+                printv("last byte is "+seqNum);
             }
             else
             {
-                finalByte = seqNum;
-                printv("last byte is "+finalByte);
-                instream.close();
-                instream = null;
+                // sourceReady() tries again once it's read
+                starved = true;
             }
+        }
+        // the source only finds its end when asked for more, which may be
+        // after the last ack came
+        if (source.atEnd() && lastAck == seqNum)
+        {
+            printv("That was the last ack!");
+            finish();
+            return;
+        }
+        if ((source.atEnd() || starved) && nextLost - seqNum >= 0 && pipe() < maxBytes())
+        {
+            // the window isn't the limit, so rate samples aren't the path's
+            rate.onAppLimited(bytesInFlight);
+        }
+    }
 
+    /**
+        maxBytes()
+        get how much may be in flight, outside recovery, for another packet
+        to go out: a whole segment has to fit in the congestion window, so
+        the flight can fill it but not pass it, while the receiver's window
+        only has to have a byte left so a small one can't stall us
+    */
+    private synchronized int maxBytes()
+    {
+        int cwnd = cc.cwnd() - mss;
+        return rwnd <= cwnd ? rwnd : cwnd + 1;
+    }
+
+    /**
+        pipe()
+        get how much is still in the network: what is in flight, less what
+        duplicate acks without SACK say got there out of order. with SACK
+        those packets already left bytesInFlight.
+    */
+    private synchronized int pipe()
+    {
+        return Math.max(bytesInFlight - held, 0);
+    }
+
+    /**
+        room()
+        determine if another packet may go out. in recovery, if the
+        controller uses it, what prrSndcnt() allowed for the ack being
+        handled decides instead of the window, so nothing goes out in
+        recovery but on an ack.
+    */
+    private synchronized boolean room()
+    {
+        if (!cc.inRecovery() || !cc.usesPrr())
+        {
+            return pipe() < maxBytes();
+        }
+        return bytesInFlight < rwnd && sndcnt > 0;
+    }
+
+    /**
+        prrSndcnt()
+        get how many bytes an ack in recovery lets out, by proportional rate
+        reduction (RFC 6937). while the pipe is over ssthresh, packets go out
+        in proportion to what is delivered, so the flight comes down to
+        ssthresh over the round trip rather than all at once. if losses took
+        the pipe under ssthresh it builds back up, by at most a segment more
+        than the ack delivered.
+        @param delivered - how many bytes the ack delivered
+    */
+    private synchronized int prrSndcnt(int delivered)
+    {
+        int pipe = pipe();
+        int ssthresh = cc.ssthresh();
+        long n;
+        if (pipe > ssthresh)
+        {
+            long fs = Math.max(recoverFs, 1);
+            n = ((long)prrDelivered * ssthresh + fs - 1) / fs - prrOut;
+        }
+        else
+        {
+            n = Math.min(ssthresh - pipe, Math.max(prrDelivered - prrOut, delivered) + mss);
         }
+        return (int)Math.max(n, 0);
     }
 
     /**
@@ -190,40 +483,59 @@ public class Client
         printv("finishing!");
         finished = true;
         listenerThread.interrupt();
-        for (TimeoutTimer t : timeouts)
-        {
-            t.interrupt();
-        }
+        timeouts.stop();
         timeouts = null;
+        pacer.stop();
         packets = null;
-        cwnd = 0;
+        try
+        {
+            source.close();
+        }
+        catch (IOException e){}
+
+        // with a tree hash the FIN carries its root, for the server to check
+        byte[] root = null;
+        if (treeRoot != null)
+        {
+            root = treeRoot.join();
+            printv("tree hash "+TreeHash.hex(root));
+        }
 
+        // every copy of the FIN has the same sequence number, so an ack for
+        // any of them will do
+        int finSeq = seqNum++;
         while (connected)
         {
             try
             {
                 // send FIN
                 Packet fin = new Packet(
-                    seqNum++ // seq num
+                    finSeq // seq num
                     ,0 // ack num
                     ,0,0,0,1 // ack, rst, syn, fin
                     ,0 // window
-                    ,null,0 // data, datalen
+                    ,root, root == null ? 0 : root.length // data, datalen
                 );
+                fin.setConnId(connId);
+                fin.setCrc(crcEnabled);
                 byte[] data = fin.getBytes();
                 DatagramPacket datagram = new DatagramPacket(data, data.length, server, port);
-                socket.setSoTimeout(2*timeout);
+                socket.setSoTimeout(2 * rto.get());
                 socket.send(datagram);
-                data = new byte[Packet.headerLen];
+                data = new byte[Packet.maxHeaderLen];
                 datagram = new DatagramPacket(data, data.length);
-                // receive ACK
+                // receive ACK. acks for data may still be on their way, so
+                // skip past them rather than sending another FIN for each
                 printv("waiting for ack");
-                socket.receive(datagram);
-                socket.setSoTimeout(0);
-                Packet ack = new Packet(datagram.getData());
-                if (ack.checksum() && ack.ack() && seqNum == ack.ackNum())
+                while (connected)
                 {
-                    connected = false;
+                    datagram.setLength(data.length);
+                    socket.receive(datagram);
+                    Packet ack = new Packet(datagram.getData(), datagram.getLength());
+                    if (valid(ack) && ack.ack() && seqNum == ack.ackNum())
+                    {
+                        connected = false;
+                    }
                 }
             }
             catch(SocketTimeoutException e){}
@@ -247,12 +559,53 @@ public class Client
         {
             return;
         }
-        byte[] data = packet.getBytes();
-        DatagramPacket datagram = new DatagramPacket(data, data.length, server, port);
-        TimeoutTimer timer = new TimeoutTimer(this, timeout, packet.seqNum());
+        long now = System.nanoTime();
+        packet.setConnId(connId);
+        packet.setCrc(crcEnabled);
+        rate.onSend(packet, bytesInFlight, now);
+        packet.setSent(now);
+        paced(packet.dataLen(), now);
+        if (cc.inRecovery())
+        {
+            prrOut += packet.dataLen();
+            sndcnt -= packet.dataLen();
+        }
+        if (tsEnabled)
+        {
+            // every copy gets a fresh stamp, so its echo times that copy,
+            // unless the copy before went out in the same ms
+            int ts = NetworkServices.timestamp();
+            packet.setStampDistinct(ts != packet.tsVal());
+            packet.setTimestamps(ts, 0);
+        }
+        packet.setMss(mssPending ? mss : -1);
+        if (packet.lost())
+        {
+            // it was taken out of the pipe when it was given up on
+            packet.setLost(false);
+            bytesInFlight += packet.dataLen();
+        }
+        // the payload goes in behind the header, out of the file
+        if (packet.buffer() == null && packet.dataLen() > 0)
+        {
+            source.read(packet, sendBuf, Packet.maxHeaderLen);
+        }
+        int start = packet.writeHeader(sendBuf, Packet.maxHeaderLen);
+        DatagramPacket datagram = new DatagramPacket(sendBuf.array(), start,
+            Packet.maxHeaderLen + packet.dataLen() - start, server, port);
+        // the timer goes on before the send, so a send that fails is tried
+        // again when it goes off
+        if (packets.get(packet.seqNum()) == null)
+        {
+            packets.add(packet);
+        }
+        timeouts.schedule(packet.seqNum(), rto.get());
         printv("Sending packet "+packet.seqNum());
         if (fcntcp.debug)
         {
+            // the copy sent later can't share the send buffer
+            datagram.setData(Arrays.copyOfRange(sendBuf.array(), start,
+                Packet.maxHeaderLen + packet.dataLen()));
             Random rand = new Random();
             // drop packets occasionally
             if (rand.nextDouble() > chanceToDropPackets)
@@ -280,22 +633,6 @@ public class Client
         {
             socket.send(datagram);
         }
-        
-        if (!packets.contains(packet))
-        {
-            packets.add(packet);
-        }
-        while (timeouts.contains(timer))
-        {
-            int index = timeouts.indexOf(timer);
-            if (index != -1)
-            {
-                //poo
-                (timeouts.remove(index)).interrupt();
-            }
-        }
-        timer.start();
-        timeouts.add(timer);
     }
 
     /**
@@ -308,35 +645,143 @@ public class Client
     public synchronized void packetTimedOut(int seqNum) throws IOException, InterruptedException
     {
         printv("Packet "+seqNum+" timed out!");
-        if (lastAck > seqNum || finished)
+        if (seqNum - lastAck < 0 || finished)
         {
             printv("Ignoring that...seqNum is "+seqNum);
             return;
         }
-        if (congestionState == CONG_AVOID || congestionState == FAST_REC)
+        Packet p = packets.get(seqNum);
+        if (p == null)
         {
-            print("Going to slow start");
-            congestionState = SLOW_START;
-            halfCWND();
-            ssthresh = cwnd;
-            cwnd = ssthresh + 3 * Packet.MSS;
+            printv("Packet not found...ignoring");
+            return;
         }
-        else if (congestionState == SLOW_START)
+        // every packet has a timer, but like TCP only the oldest one's
+        // counts. a later packet may just be queued behind it, and resending
+        // the whole window whenever the queue outgrows the timeout only
+        // makes the queue longer. the others wait for their turn.
+        if (seqNum != lastAck)
         {
-            halfCWND();
-            ssthresh = cwnd;
+            timeouts.schedule(seqNum, rto.get());
+            return;
         }
+        rto.backoff();
+        // only the first timeout of a packet can be undone, since the
+        // controller only remembers the state from before the last one
+        undoPending = seqNum != undoSeq;
+        undoSeq = seqNum;
+        undoCopies = p.transmissions();
+        undoAt = System.nanoTime();
+        lossTimerAt = 0;
+        probeTimer = false;
+        probePending = false;
+        undoRecover = recover;
+        String before = cc.state();
+        cc.onTimeout();
+        // dup acks for what was sent before now don't start another recovery
+        recover = seqNum;
+        held = 0;
+        stateChange(before);
         congState();
-        Packet temp = new Packet(seqNum);
-        int index = packets.indexOf(temp);
-        if (index == -1)
+        markLost();
+        sendNext();
+    }
+
+    /**
+        spurious()
+        determine if the ack that covers the packet the last timeout gave
+        up on is for a copy sent before the timeout, so the packet was only
+        late (RFC 3522). with timestamps the echo says which copy it is for.
+        without, an ack sooner than half the smallest round trip after the
+        resend can't be for it. with SACK, the server SACKs each packet
+        behind a lost one as it comes, so an ack that also covers the next
+        packet, sent before the timeout and never SACK'd, means they came
+        together, late.
+        @param p - the packet, or null if it is gone
+        @param ackNum - the ack number that covers it
+        @param now - the current time in ns
+    */
+    private synchronized boolean spurious(Packet p, int ackNum, long now)
+    {
+        if (p == null)
         {
-            printv("Packet not found...ignoring");
-            return;
+            return false;
+        }
+        if (p.transmissions() == undoCopies)
+        {
+            return true; // the pacer hadn't even let it go again
+        }
+        if (p.transmissions() != undoCopies + 1)
+        {
+            return false; // it was resent again since, so the echo can't say
+        }
+        if (echoed)
+        {
+            return echo - p.tsVal() < 0;
+        }
+        if (minRtt > 0 && now - p.sentAt() < minRtt / 2)
+        {
+            return true;
         }
-        Packet p = packets.remove(index);
-        printv("Resending "+seqNum);
-        sendPacket(p);
+        Packet q = packets.get(undoSeq + p.dataLen());
+        return sackEnabled && q != null && !q.receiverAckd() && q.transmissions() == 1
+            && q.sentAt() - undoAt < 0 && ackNum - (q.seqNum() + q.dataLen()) >= 0;
+    }
+
+    /**
+        undo()
+        go back on a spurious timeout (RFC 4015). the controller goes back
+        to its state from before it, and the packets given up on were only
+        late, so they go back in the pipe rather than being resent. RACK
+        finds any hole among them again.
+    */
+    private synchronized void undo()
+    {
+        print("Timeout was spurious");
+        String before = cc.state();
+        cc.onUndo();
+        stateChange(before);
+        recover = undoRecover;
+        for (int s = lastAck; s - seqNum < 0; )
+        {
+            Packet p = packets.get(s);
+            if (p == null)
+            {
+                break;
+            }
+            if (p.lost())
+            {
+                p.setLost(false);
+                bytesInFlight += p.dataLen();
+            }
+            s += p.dataLen();
+        }
+        nextLost = seqNum;
+    }
+
+    /**
+        markLost()
+        after the oldest packet times out, give up on every packet in flight
+        the server hasn't SACK'd, as TCP does (RFC 6675). they leave the pipe
+        and are resent, oldest first, as the congestion window allows.
+    */
+    private synchronized void markLost() throws IOException, InterruptedException
+    {
+        for (int s = lastAck; s - seqNum < 0; s += mss)
+        {
+            Packet p = packets.get(s);
+            if (p == null)
+            {
+                break;
+            }
+            if (!p.receiverAckd() && !p.lost())
+            {
+                p.setLost(true);
+                timeouts.cancel(s);
+                bytesInFlight -= p.dataLen();
+            }
+        }
+        nextLost = lastAck;
     }
 
     /**
@@ -346,128 +791,652 @@ public class Client
         if the ack was the last one we are expecting, this will initiate the 
         finish procedure.
         @param ackNum - the ack number received
+        @param sackBlocks - the SACK block edges in the ack, or null
     */
-    public synchronized void gotAck(int ackNum) throws IOException, InterruptedException
+    public synchronized void gotAck(int ackNum, int[] sackBlocks) throws IOException, InterruptedException
     {
         printv("Got ack # "+ackNum);
-        // stop and remove old timeouts
-        for (int i = timeouts.size()-1; i >= 0; i--)
+        if (finished)
+        {
+            return;
+        }
+        mssPending = false;
+        long now = System.nanoTime();
+        if (undoPending && ackNum - undoSeq > 0)
+        {
+            undoPending = false;
+            if (spurious(packets.get(undoSeq), ackNum, now))
+            {
+                undo();
+            }
+        }
+        boolean repaired = false; // a tail loss probe repaired a loss
+        if (probePending && ackNum - probeSeq > 0)
+        {
+            probePending = false;
+            // unless the echo says the copy sent before the probe got
+            // there, the probe is all that did (RFC 8985 section 7.4)
+            Packet p = packets.get(probeSeq);
+            repaired = p != null && (!echoed || echo == p.tsVal());
+        }
+        // remove old packets and stop their timeouts
+        long deliveredBefore = rate.delivered();
+        Packet acked;
+        Packet newest = null; // the last sent of the packets this ack is news of
+        while ((acked = packets.pollAcked(ackNum)) != null)
+        {
+            timeouts.cancel(acked.seqNum());
+            if (!acked.receiverAckd())
+            {
+                rate.onDelivered(acked, now);
+                rackDelivered(acked, now);
+            }
+            if (!acked.receiverAckd() && !acked.lost())
+            {
+                // SACK'd and lost packets already left the pipe
+                bytesInFlight -= acked.dataLen();
+                newest = later(newest, acked);
+            }
+        }
+        if (sackEnabled && sackBlocks != null)
+        {
+            newest = later(newest, processSack(ackNum, sackBlocks, now));
+        }
+        // a packet SACK'd earlier arrived long before this ack, so only
+        // packets this ack is news of give a fair round trip time
+        if (newest != null)
         {
-            int s = timeouts.get(i).seqNum();
-            if (s < ackNum)
+            rttSample((now - newest.sentAt()) / 1e6);
+            printv("rtt sample, srtt = "+rto.srtt()+" rto = "+rto.get());
+            if (echoed)
             {
-                //poo
-                timeouts.remove(i).interrupt();
+                delaySample(newest);
             }
         }
-        // remove old packets
-        for (int i = packets.size()-1; i >= 0; i--)
+        else if (echoed && ackNum - lastAck > 0)
         {
-            int s = packets.get(i).seqNum();
-            if (s < ackNum)
+            // none of them can be timed by when we sent it, but the echo is
+            // when we sent the copy that moved the ack on. it only counts
+            // whole ms, so a round trip under one is left to the other acks.
+            int ms = NetworkServices.timestamp() - echo;
+            if (ms > 0)
             {
-                bytesInFlight -= packets.remove(i).dataLen();
+                rttSample(ms);
+                printv("rtt sample from echo, srtt = "+rto.srtt()+" rto = "+rto.get());
             }
         }
-        if (ackNum == finalByte)
+        echoed = false;
+        cc.onRateSample(rate.sample(minRtt), bytesInFlight);
+        if (source.atEnd() && ackNum == seqNum)
         {
             printv("That was the last ack!");
             finish();
             return;
         }
+        int delivered = (int)(rate.delivered() - deliveredBefore);
+        String before = cc.state();
+        boolean resend = false; // the first packet the server is missing should go again
         if (ackNum == lastAck)
         {
             dupAcks ++;
-            if (congestionState == FAST_REC)
+            if (!sackEnabled)
             {
-                cwnd += Packet.MSS;
+                // without SACK, each is a packet that got there out of order
+                held += mss;
+                delivered = mss;
             }
-            else
+            // once per loss: dup acks for what was sent before the last
+            // recovery or timeout may still be coming (RFC 6582)
+            if (!sackEnabled && !cc.inRecovery() && dupAcks == 3 && ackNum - recover >= 0)
             {
-                print("Going to fast recovery");
-                congestionState = FAST_REC;
-                halfCWND();
-                ssthresh = cwnd;
-                cwnd = ssthresh + 3 * Packet.MSS;
+                startRecovery(ackNum, delivered);
+                resend = true;
             }
         }
         else
         {
-            if (congestionState == FAST_REC)
+            if (!sackEnabled)
             {
-                print("Going to congestion avoidance");
-                congestionState = CONG_AVOID;
+                // the packets the dup acks stood for were counted then
+                int covered = Math.min(held, ackNum - lastAck);
+                held -= covered;
+                delivered -= covered;
             }
             dupAcks = 0;
-            incrementCWND();
+            if (repaired && !cc.inRecovery())
+            {
+                // the loss is behind us already, so recovery ends at once
+                startRecovery(ackNum, delivered);
+                recover = ackNum;
+            }
+            if (!cc.inRecovery() || ackNum - recover >= 0)
+            {
+                cc.onAck(ackNum - lastAck);
+            }
+            else if (!sackEnabled)
+            {
+                // a partial ack: the packet after it was lost too (RFC 6582).
+                // with SACK, RACK finds it
+                resend = true;
+            }
+        }
+        if (sackEnabled && rackDetect(ackNum, now) && !cc.inRecovery() && ackNum - recover >= 0)
+        {
+            startRecovery(ackNum, delivered);
         }
+        if (cc.inRecovery())
+        {
+            prrDelivered += delivered;
+            sndcnt = Math.max(sndcnt, prrSndcnt(delivered));
+        }
+        stateChange(before);
         lastAck = ackNum;
-        if (dupAcks >= 3)
+        if (resend)
         {
             printv("fast retransmit of "+ackNum);
-            Packet p = new Packet(ackNum);
-            sendPacket(packets.get(packets.indexOf(p)));
+            Packet p = packets.get(ackNum);
+            if (p != null)
+            {
+                sendPacket(p);
+            }
         }
-        else
+        sendNext();
+        // what this ack allowed and didn't use isn't carried over
+        sndcnt = 0;
+        armProbe();
+        congState();
+    }
+
+    /**
+        startRecovery()
+        go into fast recovery after a loss. the first retransmission goes
+        out whatever proportional rate reduction allows, as the fast
+        retransmit does in RFC 6937, so recovery started by the reorder
+        timer, with no ack to let anything out, doesn't wait for the
+        timeout.
+        @param ackNum - the ack number the loss was found at
+        @param delivered - how many bytes the ack delivered, 0 for the timer
+    */
+    private synchronized void startRecovery(int ackNum, int delivered)
+    {
+        cc.onLoss(pipe(), delivered);
+        recover = seqNum;
+        recoverFs = seqNum - ackNum;
+        prrDelivered = 0;
+        prrOut = 0;
+        sndcnt = mss;
+    }
+
+    /**
+        rackDelivered()
+        note a packet the server has, for RACK (RFC 8985): the send time of
+        the last sent packet known delivered is what the others are judged
+        against. a resent packet ack'd sooner than the round trip allows
+        may have been the first copy, so it says nothing.
+        @param p - the packet, newly ack'd or SACK'd
+        @param now - the current time in ns
+    */
+    private synchronized void rackDelivered(Packet p, long now)
+    {
+        long rtt = now - p.sentAt();
+        if (p.transmissions() > 1 && rtt < minRtt)
         {
-            sendNext();
+            return;
+        }
+        if (p.transmissions() == 1 && sentBefore(p, rackSentAt, rackEnd))
+        {
+            reordering = true; // it got there after a packet sent later
+        }
+        if (!sentBefore(p, rackSentAt, rackEnd))
+        {
+            rackSentAt = p.sentAt();
+            rackEnd = p.seqNum() + p.dataLen();
+            rackRtt = rtt;
         }
-        congState();
+    }
+
+    // determine if a packet was sent before another, going by sequence
+    // number for two sent at once
+    private static boolean sentBefore(Packet p, long sentAt, int end)
+    {
+        return p.sentAt() - sentAt < 0
+            || p.sentAt() == sentAt && (p.seqNum() + p.dataLen()) - end < 0;
     }
 
     /**
-        setRWND()
-        set the servers receive window. 
-        @param r - the size in bytes of the receive window
+        rackDetect()
+        give up on each packet the server still lacks that was sent long
+        enough before the last sent packet known delivered. it had a round
+        trip, plus a window for reordering, to get there first. lost
+        retransmissions are found this way too, not just holes in the
+        original sends. a packet that still has time arms the reorder
+        timer for when it runs out.
+        @param ackNum - the ack number, where the packets start
+        @param now - the current time in ns
+        @return true if any packet was given up on
     */
-    public synchronized void setRWND(int r)
+    private synchronized boolean rackDetect(int ackNum, long now)
     {
-        printv("setting rwnd to "+r);
-        rwnd = r;
+        if (rackSentAt == 0)
+        {
+            return false;
+        }
+        // with no reordering seen, a loss is certain once three packets
+        // behind it got there, or once we know of one loss
+        long window = !reordering && (cc.inRecovery() || dupAcks >= 3) ? 0 : minRtt / 4;
+        long wait = 0;
+        boolean marked = false;
+        for (int s = ackNum; s - seqNum < 0; )
+        {
+            Packet p = packets.get(s);
+            if (p == null)
+            {
+                break;
+            }
+            if (!sentBefore(p, rackSentAt, rackEnd))
+            {
+                if (p.transmissions() == 1)
+                {
+                    break; // so was every packet after it
+                }
+            }
+            else if (!p.receiverAckd() && !p.lost())
+            {
+                long left = p.sentAt() + rackRtt + window - now;
+                if (left <= 0)
+                {
+                    printv("giving up on "+s);
+                    p.setLost(true);
+                    bytesInFlight -= p.dataLen();
+                    if (nextLost - s > 0)
+                    {
+                        nextLost = s;
+                    }
+                    marked = true;
+                }
+                else if (left > wait)
+                {
+                    wait = left;
+                }
+            }
+            s += p.dataLen();
+        }
+        if (wait > 0)
+        {
+            lossTimerAt = now + wait;
+            probeTimer = false;
+            pacer.wake(lossTimerAt);
+        }
+        else if (!probeTimer)
+        {
+            lossTimerAt = 0;
+        }
+        return marked;
+    }
+
+    /**
+        armProbe()
+        set the tail loss probe for two round trips from now (RFC 8985
+        section 7). if the last packets sent are lost, no acks come to show
+        it, and without a probe only the timeout would. one packet in
+        flight also waits for the server's delayed ack. with SACK only,
+        since the probe's SACK is how the hole before it is found.
+    */
+    private synchronized void armProbe()
+    {
+        if (!sackEnabled || cc.inRecovery() || probePending || tail == null
+            || seqNum == lastAck || rto.srtt() <= 0 || lossTimerAt != 0 && !probeTimer)
+        {
+            return;
+        }
+        double pto = 2 * rto.srtt();
+        if (seqNum - lastAck <= mss)
+        {
+            pto = Math.max(pto, 1.5 * rto.srtt() + ACK_DELAY);
+        }
+        pto = Math.min(pto, rto.get());
+        lossTimerAt = System.nanoTime() + (long)(pto * 1e6);
+        probeTimer = true;
+        pacer.wake(lossTimerAt);
+    }
+
+    /**
+        lossTimer()
+        run the reorder timer or tail loss probe once it is due. the probe
+        resends the last new packet, unless the server already has it.
+        @param now - the current time in ns
+    */
+    private synchronized void lossTimer(long now) throws IOException, InterruptedException
+    {
+        if (lossTimerAt == 0)
+        {
+            return;
+        }
+        if (now - lossTimerAt < 0)
+        {
+            pacer.wake(lossTimerAt); // an earlier wake came first
+            return;
+        }
+        lossTimerAt = 0;
+        if (!probeTimer)
+        {
+            String before = cc.state();
+            boolean marked = rackDetect(lastAck, now);
+            if (marked && !cc.inRecovery() && lastAck - recover >= 0)
+            {
+                startRecovery(lastAck, 0);
+            }
+            else if (marked && cc.inRecovery())
+            {
+                // acks have stopped, so only what they left unsent goes
+                sndcnt = prrSndcnt(0);
+            }
+            stateChange(before);
+            return;
+        }
+        probeTimer = false;
+        if (tail != null && !tail.receiverAckd() && tail.seqNum() - lastAck >= 0)
+        {
+            printv("tail loss probe "+tail.seqNum());
+            probePending = true;
+            probeSeq = tail.seqNum();
+            sendPacket(tail);
+        }
     }
 
     /**
-        incrementCWND()
-        increase the size of the congestion window. depending on the congestion state,
-        the cwnd will be increased by a certain amount. 
+        processSack()
+        mark the packets the server says it holds. they leave the pipe and
+        their timeouts stop, and are not retransmitted.
+        @param ackNum - the ack number the blocks came with
+        @param edges - the SACK block edges, left and right in pairs
+        @param now - the current time in ns
+        @return the last sent of the newly SACK'd packets that were only
+            sent once, or null
     */
-    private synchronized void incrementCWND()
+    private synchronized Packet processSack(int ackNum, int[] edges, long now)
     {
-        if (congestionState == SLOW_START)
+        Packet newest = null;
+        for (int b = 0; b + 1 < edges.length; b += 2)
         {
-            cwnd += Packet.MSS;
-            if (cwnd > ssthresh)
+            int left = edges[b];
+            int right = edges[b+1];
+            if (right - ackNum <= 0)
+            {
+                continue; // old news
+            }
+            if (left - ackNum < 0)
+            {
+                left = ackNum;
+            }
+            for (int s = left; s - right < 0; s += mss)
             {
-                print("Moving to congestion avoidance");
-                congestionState = CONG_AVOID;
-                congState();
+                Packet p = packets.get(s);
+                if (p != null && !p.receiverAckd() && (s + p.dataLen()) - right <= 0)
+                {
+                    p.setReceiverAckd();
+                    timeouts.cancel(s);
+                    rate.onDelivered(p, now);
+                    rackDelivered(p, now);
+                    if (p.lost())
+                    {
+                        p.setLost(false); // it got there after all
+                    }
+                    else
+                    {
+                        bytesInFlight -= p.dataLen();
+                    }
+                    newest = later(newest, p);
+                }
+            }
+            if (right - highSacked > 0)
+            {
+                highSacked = right;
             }
         }
-        else if (congestionState == CONG_AVOID)
+        return newest;
+    }
+
+    /**
+        gotTimestamps()
+        notify this client of the timestamps on an ack, before gotAck() for
+        the same ack. the echo tells gotAck() which copy of a retransmitted
+        packet got there, and the server's timestamp gives the one way delay.
+        @param tsVal - the server's timestamp
+        @param tsEcr - our timestamp it echoes
+    */
+    public synchronized void gotTimestamps(int tsVal, int tsEcr)
+    {
+        if (!tsEnabled || finished)
+        {
+            return;
+        }
+        echoed = true;
+        echo = tsEcr;
+        serverTs = tsVal;
+    }
+
+    /**
+        delaySample()
+        pass the one way delay towards the server on to the congestion
+        controller: the server's clock when it sent the ack less ours when
+        we sent a packet, plus the difference between the clocks, which the
+        controller has to take out. the echo is of the oldest packet the ack
+        covers, and a delayed ack waited at the server for the ones after
+        it, so going by the echo LEDBAT would take the hold for a queue.
+        the last sent of the packets the ack is news of arrived closest to
+        when the ack went out, so the delay is measured to it instead.
+        @param p - the last sent of the packets the ack is news of, whose
+            timestamp says which copy got there
+    */
+    private synchronized void delaySample(Packet p)
+    {
+        cc.onDelaySample(serverTs - p.tsVal());
+    }
+
+    /**
+        rttSample()
+        pass a round trip time measurement on to the timeout estimate and
+        the congestion controller
+        @param rtt - the round trip time in ms
+    */
+    private synchronized void rttSample(double rtt)
+    {
+        rto.sample(rtt);
+        cc.onRttSample(rtt);
+        long ns = (long)(rtt * 1e6);
+        if (minRtt == 0 || ns < minRtt)
         {
-            cwnd = cwnd + (int)(Packet.MSS * (1.0*Packet.MSS/cwnd));
+            minRtt = ns;
         }
-        else if (congestionState == FAST_REC)
+    }
+
+    /**
+        pacing()
+        determine if the pacing rate holds the next packet back. if it
+        does, the pacer is asked to wake us when it may go.
+        @return true if the packet must wait
+    */
+    private synchronized boolean pacing()
+    {
+        if (cc.pacingRate() <= 0 || nextSend - System.nanoTime() <= 0)
         {
-            cwnd = ssthresh;
+            return false;
         }
+        pacer.wake(nextSend);
+        return true;
     }
 
     /**
-        halfCWND()
-        half the size of the congestion window.
+        paced()
+        move the pacing time on by one packet's share of the rate. a little
+        credit is kept after a pause, so the pacer waking late doesn't cost
+        any rate, but not enough to allow a burst.
+        @param len - the bytes just sent
+        @param now - the current time in ns
     */
-    private synchronized void halfCWND()
+    private synchronized void paced(int len, long now)
     {
-        if (cwnd <= 2 * Packet.MSS)
+        long r = cc.pacingRate();
+        if (r <= 0)
         {
             return;
         }
-        if (cwnd % Packet.MSS != 0)
+        if (now - nextSend > PACING_CREDIT)
         {
-            cwnd -= Packet.MSS;
+            nextSend = now - PACING_CREDIT;
+        }
+        nextSend += len * 1000000000L / r;
+    }
+
+    /**
+        sourceReady()
+        notify this client that the file source has read more of a pipe,
+        or found its end, from the source's reader thread
+    */
+    public synchronized void sourceReady()
+    {
+        if (finished || !connected || packets == null)
+        {
+            return;
+        }
+        try
+        {
+            sendNext();
+        }
+        catch (IOException e)
+        {
+            // a send that fails is retried by its timer; a read that failed
+            // shows up again on the next call
+            print("Failed to send after a read: "+e.getMessage());
+        }
+        catch (InterruptedException e){}
+    }
+
+    /**
+        pacerWoke()
+        notify this client that the pacer woke it, for the pacing rate to
+        let the next packet go or for the loss timer
+    */
+    public synchronized void pacerWoke() throws IOException, InterruptedException
+    {
+        if (finished)
+        {
+            return;
+        }
+        lossTimer(System.nanoTime());
+        sendNext();
+        // what the loss timer allowed and didn't use isn't carried over
+        sndcnt = 0;
+    }
+
+    /**
+        later()
+        pick the packet that was sent last, leaving out any that were sent
+        more than once. by Karn's rule their acks could be for either copy,
+        so they can't be timed, unless the ack echoes the timestamp of the
+        last copy, which says that one got there.
+        @param a - a packet, or null
+        @param b - another packet, or null
+        @return the later one, or null if neither can be timed
+    */
+    private Packet later(Packet a, Packet b)
+    {
+        if (b == null || b.transmissions() != 1
+            && !(echoed && b.tsVal() == echo && b.stampDistinct()))
+        {
+            return a;
+        }
+        if (a == null || b.sentAt() - a.sentAt() > 0)
+        {
+            return b;
+        }
+        return a;
+    }
+
+    /**
+        setRWND()
+        set the servers receive window. 
+        @param r - the size in bytes of the receive window
+    */
+    public synchronized void setRWND(int r)
+    {
+        printv("setting rwnd to "+r);
+        rwnd = r;
+    }
+
+    /**
+        setWindowScaling()
+        choose whether to offer window scaling in the handshake. without it
+        the server can't advertise a window bigger than 64k.
+        @param on - true to offer window scaling
+    */
+    public synchronized void setWindowScaling(boolean on)
+    {
+        windowScaling = on;
+    }
+
+    /**
+        setSack()
+        choose whether to offer selective acknowledgments in the handshake
+        @param on - true to offer SACK
+    */
+    public synchronized void setSack(boolean on)
+    {
+        sack = on;
+    }
+
+    /**
+        setTreeHash()
+        choose whether to offer to sum the file as a Merkle tree, rather
+        than with MD5, in the handshake
+        @param on - true to offer a tree hash
+    */
+    public synchronized void setTreeHash(boolean on)
+    {
+        treeHash = on;
+    }
+
+    /**
+        setTimestamps()
+        choose whether to offer timestamps in the handshake
+        @param on - true to offer timestamps
+    */
+    public synchronized void setTimestamps(boolean on)
+    {
+        timestamps = on;
+    }
+
+    /**
+        windowShift()
+        get how far the window field of the server's acks is scaled
+    */
+    public synchronized int windowShift()
+    {
+        return windowShift;
+    }
+
+    /**
+        setCongestionControl()
+        choose the congestion control algorithm
+        @param c - the controller, before the connection starts
+    */
+    public synchronized void setCongestionControl(CongestionController c)
+    {
+        cc = c;
+    }
+
+    /**
+        stateChange()
+        print the congestion state if it changed
+        @param before - the name of the state before
+    */
+    private synchronized void stateChange(String before)
+    {
+        if (!before.equals(cc.state()))
+        {
+            print("Going to "+cc.state().toLowerCase());
         }
-        cwnd /= 2;
     }
 
     /**
@@ -479,6 +1448,48 @@ public class Client
         return socket;
     }
 
+    /**
+        valid()
+        determine if a packet from the server is for this connection and
+        came through intact, with the checksum that was agreed
+        @param p - the packet
+    */
+    public synchronized boolean valid(Packet p)
+    {
+        return p.checksum() && p.crc() == crcEnabled && p.connId() == connId;
+    }
+
+    /**
+        setMaxMss()
+        choose the largest segment to offer in the handshake. anything over
+        the default is probed before it is used.
+        @param m - the segment size in bytes
+    */
+    public synchronized void setMaxMss(int m)
+    {
+        maxMss = Math.max(1, Math.min(m, Packet.MAX_MSS));
+    }
+
+    /**
+        setCrc32c()
+        choose whether to offer CRC32C in the handshake in place of the 16
+        bit checksum
+        @param on - true to offer CRC32C
+    */
+    public synchronized void setCrc32c(boolean on)
+    {
+        crc32c = on;
+    }
+
+    /**
+        connId()
+        get the connection id the server gave this client
+    */
+    public synchronized int connId()
+    {
+        return connId;
+    }
+
     /**
         PacketListener
         this class will listen for incoming packets, and notify the client
@@ -496,25 +1507,35 @@ public class Client
         public void run()
         {
             DatagramSocket socket = client.getSocket();
-            DatagramPacket datagram;
-            Packet packet;
-            byte[] data;
+            // acks have no payload, and nothing is kept from one once it
+            // has been handled, so one buffer and one packet do for all of
+            // them
+            ByteBuffer buf = ByteBuffer.allocate(Packet.MTU);
+            DatagramPacket datagram = new DatagramPacket(buf.array(), Packet.MTU);
+            Packet packet = new Packet(0);
             try
             {
                 while (!done)
                 {
-                    data = new byte[Packet.MTU];
-                    datagram = new DatagramPacket(data, data.length);
+                    datagram.setLength(Packet.MTU);
                     socket.receive(datagram);
                     // printv("Received a packet!");
-                    packet = new Packet(datagram.getData());
-                    if (packet.checksum())
+                    if (datagram.getLength() < Packet.headerLen)
+                    {
+                        continue;
+                    }
+                    packet.read(buf, 0, datagram.getLength());
+                    if (client.valid(packet))
                     {
-                        client.setRWND(packet.window());
+                        client.setRWND(packet.window() << client.windowShift());
                         if (packet.ack()) // only really care about acks
                         {
+                            if (packet.timestamps())
+                            {
+                                client.gotTimestamps(packet.tsVal(), packet.tsEcr());
+                            }
                             // printv("Got ack " + packet.ackNum());
-                            client.gotAck(packet.ackNum());
+                            client.gotAck(packet.ackNum(), packet.sack());
                         }
                     }
                 }
@@ -532,16 +1553,9 @@ public class Client
     */
     private synchronized void congState()
     {
-        if (congestionState == SLOW_START)
-            printv("\tSlow start");
-        else if (congestionState == CONG_AVOID)
-            printv("\tCongestion avoidance");
-        else if (congestionState == FAST_REC)
-            printv("\tFast recovery");
-        else
-            printv("\tunknown state = "+congestionState);
-        printv("\tcwnd = "+cwnd);
-        printv("\tssthresh = "+ssthresh);
+        printv("\t"+cc.state());
+        printv("\tcwnd = "+cc.cwnd());
+        printv("\tssthresh = "+cc.ssthresh());
         printv("\tdup acks = "+dupAcks);
     }
 
@@ -560,7 +1574,7 @@ public class Client
         print a message to the console
         @param s - the string to print
     */
-    private synchronized void print(String s)
+    public synchronized void print(String s)
     {
         System.out.println("Client: "+s);
         //if (fcntcp.debug){System.out.println("Client: "+s);}
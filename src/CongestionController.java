@@ -0,0 +1,143 @@
+/**
+    CongestionController.java
+    This interface is a congestion control algorithm for the client. The
+    client tells it about acks, losses, timeouts, round trip times, one way
+    delays and delivery rates, and asks it how many bytes may be in flight and how
+    fast to send them. Each algorithm keeps its own state; the client keeps
+    count of duplicate acks and decides when recovery starts and ends.
+*/
+
+public interface CongestionController
+{
+    /**
+        connected()
+        called once the handshake is done, before anything is sent
+        @param maxWindow - the largest window the server can advertise, in bytes
+        @param mss - the segment size the connection uses
+    */
+    void connected(int maxWindow, int mss);
+
+    /**
+        onAck()
+        called when an ack covers new data, outside recovery or when it ends
+        recovery. an ack that covers only part of what was sent before
+        recovery began leaves it to go on.
+        @param acked - how many new bytes the ack covered
+    */
+    void onAck(int acked);
+
+    /**
+        onLoss()
+        called when duplicate acks show a packet was lost and the controller
+        is not already in recovery
+        @param inFlight - bytes still in the network, less what was given up on
+        @param acked - bytes the ack that found the loss delivered, 0 if the
+            reorder timer found it
+    */
+    void onLoss(int inFlight, int acked);
+
+    /**
+        onTimeout()
+        called when the retransmission timer of the oldest unack'd packet fires
+    */
+    void onTimeout();
+
+    /**
+        onUndo()
+        called when the last timeout turns out to have been spurious: the
+        packet it gave up on got there after all, just late. go back to the
+        window and threshold from before it.
+    */
+    void onUndo();
+
+    /**
+        onRttSample()
+        called with each round trip time measurement
+        @param rtt - the round trip time in ms
+    */
+    void onRttSample(double rtt);
+
+    /**
+        onDelaySample()
+        called with the one way delay an ack's timestamps show, before the
+        ack itself is handled
+        @param delay - the delay in ms, plus an unknown offset between the
+            client's and server's clocks
+    */
+    void onDelaySample(int delay);
+
+    /**
+        onRateSample()
+        called after each ack with a delivery rate sample
+        @param rs - the sample
+        @param inFlight - bytes in flight after the ack
+    */
+    void onRateSample(RateSampler.Sample rs, int inFlight);
+
+    /**
+        pacingRate()
+        get the rate to space out sends at
+        @return bytes per second, or 0 to send as much as the window allows
+            at once
+    */
+    long pacingRate();
+
+    /**
+        usesPrr()
+        determine if the client should size what it sends in recovery by
+        proportional rate reduction (RFC 6937), bringing the flight down to
+        ssthresh(), rather than by cwnd()
+    */
+    boolean usesPrr();
+
+    /**
+        inRecovery()
+        determine if the controller is recovering from a loss
+    */
+    boolean inRecovery();
+
+    /**
+        cwnd()
+        get the congestion window in bytes
+    */
+    int cwnd();
+
+    /**
+        ssthresh()
+        get the slow start threshold in bytes
+    */
+    int ssthresh();
+
+    /**
+        state()
+        get a name for the current state, for printing
+    */
+    String state();
+
+    /**
+        forName()
+        make a congestion controller from its name on the command line
+        @param name - reno, cubic, bbr or ledbat
+        @throws IllegalArgumentException if there is no such algorithm
+    */
+    static CongestionController forName(String name)
+    {
+        if (name.equalsIgnoreCase("reno"))
+        {
+            return new Reno();
+        }
+        if (name.equalsIgnoreCase("cubic"))
+        {
+            return new Cubic();
+        }
+        if (name.equalsIgnoreCase("bbr"))
+        {
+            return new Bbr();
+        }
+        if (name.equalsIgnoreCase("ledbat"))
+        {
+            return new Ledbat();
+        }
+        throw new IllegalArgumentException("unknown congestion control "+name);
+    }
+}
@@ -0,0 +1,202 @@
+/**
+    Cubic.java
+    This class is CUBIC congestion control (RFC 9438). Out of slow start the
+    window follows a cubic function of the time since the last loss: it
+    climbs fast while far below the window where the loss happened, levels
+    off near it, then probes beyond it. Because growth depends on time and
+    not on the number of acks, a long round trip doesn't slow it down the
+    way it slows Reno. A loss cuts the window to 0.7 of what it was.
+*/
+
+public class Cubic implements CongestionController
+{
+    private static final double C = 0.4; // scales the cubic, in segments per second cubed
+    private static final double BETA = 0.7; // what is left of the window after a loss
+
+    private int mss = Packet.MSS; // the segment size
+    private int cwnd = 2 * Packet.MSS;
+    private int ssthresh = Integer.MAX_VALUE;
+    private boolean recovery = false;
+
+    private double wMax = 0; // the window at the last loss, in segments
+    private double k = 0; // seconds from the start of the epoch to reach wMax again
+    private double origin = 0; // the window the cubic levels off at, in segments
+    private long epochStart = 0; // when growth since the last loss began, in ns, 0 for none
+    private double wEst = 0; // what Reno's window would be, in segments
+    private double minRtt = 0; // the smallest round trip time seen, in seconds
+
+    // the state before the last timeout, in case it was spurious
+    private int priorCwnd = 0;
+    private int priorSsthresh = 0;
+    private double priorWMax = 0;
+    private boolean priorRecovery = false;
+
+    /**
+        connected()
+        start with the largest window the server can advertise as the
+        threshold, so slow start runs until the first loss
+        @param maxWindow - the largest window the server can advertise
+        @param mss - the segment size
+    */
+    public void connected(int maxWindow, int mss)
+    {
+        this.mss = mss;
+        cwnd = 2 * mss;
+        ssthresh = maxWindow;
+    }
+
+    /**
+        onAck()
+        grow the window: by the bytes ack'd in slow start, and towards the
+        cubic's target for one round trip from now in congestion avoidance.
+        the ack that ends recovery starts again from the threshold.
+        @param acked - how many new bytes the ack covered
+    */
+    public void onAck(int acked)
+    {
+        if (recovery)
+        {
+            recovery = false;
+            cwnd = ssthresh; // the flight was brought down to it
+        }
+        if (cwnd < ssthresh)
+        {
+            cwnd += acked;
+            return;
+        }
+        long now = System.nanoTime();
+        double w = (double)cwnd / mss;
+        if (epochStart == 0)
+        {
+            epochStart = now;
+            if (w < wMax)
+            {
+                k = Math.cbrt((wMax - w) / C);
+                origin = wMax;
+            }
+            else
+            {
+                k = 0;
+                origin = w;
+            }
+            wEst = w;
+        }
+        double t = (now - epochStart) / 1e9 + minRtt;
+        double target = origin + C * Math.pow(t - k, 3);
+        // don't grow more than half the window in one round trip
+        if (target < w) { target = w; }
+        if (target > 1.5 * w) { target = 1.5 * w; }
+        // stay at least as fast as Reno would be (RFC 9438 section 4.3)
+        wEst += 3 * (1 - BETA) / (1 + BETA) * acked / cwnd;
+        if (wEst > target)
+        {
+            target = wEst;
+        }
+        cwnd += (int)Math.ceil((target - w) * acked / w);
+    }
+
+    /**
+        onLoss()
+        cut the window and go into recovery
+    */
+    public void onLoss(int inFlight, int acked)
+    {
+        reduce();
+        cwnd = ssthresh;
+        recovery = true;
+    }
+
+    /**
+        onTimeout()
+        cut the threshold and start again from a small window
+    */
+    public void onTimeout()
+    {
+        priorCwnd = cwnd;
+        priorSsthresh = ssthresh;
+        priorWMax = wMax;
+        priorRecovery = recovery;
+        reduce();
+        // the client keeps one segment of the window back
+        cwnd = 2 * mss;
+        recovery = false;
+    }
+
+    /**
+        onUndo()
+        go back to the state from before the last timeout, keeping any
+        growth since. the cubic starts again from the restored window.
+    */
+    public void onUndo()
+    {
+        cwnd = Math.max(cwnd, priorCwnd);
+        ssthresh = Math.max(ssthresh, priorSsthresh);
+        wMax = priorWMax;
+        recovery = priorRecovery;
+        epochStart = 0;
+    }
+
+    /**
+        reduce()
+        remember where the loss happened and lower the threshold. if the
+        window didn't get back to the last loss point, assume other flows
+        need room and plan to level off lower (fast convergence).
+    */
+    private void reduce()
+    {
+        double w = (double)cwnd / mss;
+        wMax = w < wMax ? w * (1 + BETA) / 2 : w;
+        epochStart = 0;
+        ssthresh = Math.max((int)(cwnd * BETA), 2 * mss);
+    }
+
+    /**
+        onRttSample()
+        keep the smallest round trip time
+        @param rtt - the round trip time in ms
+    */
+    public void onRttSample(double rtt)
+    {
+        if (minRtt == 0 || rtt / 1000 < minRtt)
+        {
+            minRtt = rtt / 1000;
+        }
+    }
+
+    /**
+        onRateSample()
+        Cubic doesn't use delivery rates
+    */
+    public void onRateSample(RateSampler.Sample rs, int inFlight){}
+
+    /**
+        onDelaySample()
+        Cubic doesn't use one way delays
+    */
+    public void onDelaySample(int delay){}
+
+    /**
+        pacingRate()
+        Cubic sends as much as the window allows at once
+    */
+    public long pacingRate(){return 0;}
+
+    public boolean usesPrr(){return true;}
+    public boolean inRecovery(){return recovery;}
+    public int cwnd(){return cwnd;}
+    public int ssthresh(){return ssthresh;}
+
+    /**
+        state()
+        get the name of the congestion state
+    */
+    public String state()
+    {
+        if (recovery)
+            return "Fast recovery";
+        else if (cwnd < ssthresh)
+            return "Slow start";
+        else
+            return "Congestion avoidance";
+    }
+}
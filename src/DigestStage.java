@@ -0,0 +1,228 @@
+/**
+    DigestStage.java
+    This class sums received files on a thread of its own, so the server's
+    receive loop never stops reading the socket to run MD5. The loop copies
+    each session's in-order bytes into BATCH-sized buffers and hands a full
+    buffer over, so MessageDigest.update always gets a large contiguous run
+    rather than one segment.
+
+    The two threads meet in a ring of slots with one writer and one reader:
+    the receive loop fills the slot at head and then moves head on, and this
+    thread sums the slot at tail and then moves tail on. Each index is only
+    ever written by one side, and being volatile, a slot is complete before
+    the other side sees the index move past it, so no lock is taken. A
+    buffer is back in the receive loop's hands once tail has passed its
+    slot, and the loop takes it back the next time it asks for a buffer.
+
+    room() says how many more bytes the ring can take. Sessions advertise no
+    more window than that, so a client slows down before the ring fills
+    rather than the receive loop stalling on it and the socket overflowing.
+
+    The buffers are on the heap, since MessageDigest sums a direct buffer a
+    few kB at a time through a copy. With a single processor there is
+    nothing for the thread to run alongside, and it would only take turns
+    with the receive loop at the scheduler's whim, so then each batch is
+    summed as it is handed over instead.
+*/
+import java.nio.ByteBuffer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+public class DigestStage implements Runnable
+{
+    public static final int BATCH = 1024 * 1024; // bytes in each buffer handed over
+    public static final int SLOTS = 64; // buffers that may wait to be summed
+    private static final boolean INLINE = Runtime.getRuntime().availableProcessors() < 2;
+    private static final int SPINS = 1000; // how often to look at an empty ring before parking
+
+    // the ring, one entry per slot
+    private MD5Summer[] summers = new MD5Summer[SLOTS];
+    private ByteBuffer[] buffers = new ByteBuffer[SLOTS]; // null for a slot that ends a file
+    private int[] lengths = new int[SLOTS];
+
+    private volatile long head = 0; // slots handed over, only moved by the receive loop
+    private volatile long tail = 0; // slots summed, only moved by this thread
+    private volatile boolean sleeping = false; // this thread found the ring empty and parked
+    private Thread thread;
+
+    // the receive loop's side
+    private long reclaimed = 0; // slots whose buffers have been taken back
+    private long submitted = 0; // bytes handed over
+    private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+    // this thread's side
+    private volatile long summed = 0; // bytes summed
+
+    /**
+        start()
+        start the digest thread
+    */
+    public void start()
+    {
+        if (INLINE)
+        {
+            return;
+        }
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        buffer()
+        get an empty BATCH-sized buffer to fill, from the receive loop
+    */
+    public ByteBuffer buffer()
+    {
+        reclaim();
+        return free.isEmpty() ? ByteBuffer.allocate(BATCH) : free.pop();
+    }
+
+    /**
+        reclaim()
+        take back the buffers of every slot that has been summed
+    */
+    private void reclaim()
+    {
+        long t = tail;
+        while (reclaimed < t)
+        {
+            int slot = (int)(reclaimed % SLOTS);
+            if (buffers[slot] != null)
+            {
+                free.push(buffers[slot]);
+                buffers[slot] = null;
+            }
+            summers[slot] = null;
+            reclaimed++;
+        }
+    }
+
+    /**
+        submit()
+        hand a filled buffer over to be summed, from the receive loop. the
+        buffer is no longer the caller's.
+        @param md5 - the sum to add the bytes to
+        @param buf - a buffer from buffer()
+        @param len - how many bytes of it, from the start, to sum
+    */
+    public void submit(MD5Summer md5, ByteBuffer buf, int len)
+    {
+        put(md5, buf, len);
+        submitted += len;
+    }
+
+    /**
+        finish()
+        have a sum printed once everything handed over for it is summed,
+        from the receive loop
+        @param md5 - the sum
+    */
+    public void finish(MD5Summer md5)
+    {
+        put(md5, null, 0);
+    }
+
+    /**
+        backlog()
+        get how many bytes have been handed over but not summed yet
+    */
+    public long backlog()
+    {
+        return submitted - summed;
+    }
+
+    /**
+        room()
+        get how many more bytes can be handed over before the ring is full,
+        keeping a slot back for the partly filled batches sessions hold
+    */
+    public long room()
+    {
+        return (long)(SLOTS - 1) * BATCH - backlog();
+    }
+
+    /**
+        put()
+        fill the slot at head and move head on. if the ring is full the
+        receive loop has no choice but to wait, which the window should
+        keep from happening.
+    */
+    private void put(MD5Summer md5, ByteBuffer buf, int len)
+    {
+        while (head - tail >= SLOTS)
+        {
+            Thread.yield();
+        }
+        // the slot at head may still hold a buffer from a lap ago
+        reclaim();
+        int slot = (int)(head % SLOTS);
+        summers[slot] = md5;
+        buffers[slot] = buf;
+        lengths[slot] = len;
+        head = head + 1;
+        if (INLINE)
+        {
+            sum(head - 1);
+        }
+        else if (sleeping)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+        run()
+        sum each slot as it is handed over, parking while there are none
+    */
+    public void run()
+    {
+        int idle = 0;
+        while (true)
+        {
+            long t = tail;
+            if (t == head)
+            {
+                if (++idle < SPINS)
+                {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // say we're going to sleep, then look once more, so a slot
+                // handed over in between isn't missed
+                sleeping = true;
+                if (t == head)
+                {
+                    LockSupport.park();
+                }
+                sleeping = false;
+                continue;
+            }
+            idle = 0;
+            sum(t);
+        }
+    }
+
+    /**
+        sum()
+        sum the slot at tail, or print its sum if it ends a file, and move
+        tail on
+        @param t - tail
+    */
+    private void sum(long t)
+    {
+        int slot = (int)(t % SLOTS);
+        ByteBuffer buf = buffers[slot];
+        if (buf == null)
+        {
+            System.out.println(summers[slot].getResult());
+        }
+        else
+        {
+            summers[slot].next(buf, 0, lengths[slot]);
+            summed += lengths[slot];
+        }
+        tail = t + 1;
+    }
+}
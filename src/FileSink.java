@@ -0,0 +1,226 @@
+/**
+    FileSink.java
+    This class stores the file a client sends, on the server. Each segment is
+    copied, as it arrives and in whatever order, into the extent of the file
+    it falls in: a buffer for one aligned EXTENT-sized piece of the file. An
+    extent is written with a single positional FileChannel.write once all of
+    it has arrived, so the disk sees large aligned writes at their place in
+    the file, never a write per segment and never a seek back to fill a hole.
+
+    The server doesn't know how big the file is, so the file is grown ahead
+    of the writes with RandomAccessFile.setLength, GROW_SIZE at a time, and
+    cut back to the length received once the client is done.
+
+    Extents are also handed to the digest stage in file order, which is the
+    order MD5 needs, and the stage gives their buffers back once they are
+    summed. An extent that fills before the ones ahead of it is written
+    straight away but waits until it is its turn to be handed over. Since
+    the client never sends past the advertised window, that is at most a
+    window's worth of extents. With a tree hash, an extent is a chunk of the
+    tree and is handed over to be hashed as soon as it fills, in any order.
+
+    A sink with no file only gathers the extents to sum, which is how a
+    tree hash is done when the server isn't saving.
+*/
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.HashMap;
+
+public class FileSink
+{
+    public static final int EXTENT = TreeHash.CHUNK; // bytes in each aligned write, and a digest batch
+    public static final long GROW_SIZE = 64L * 1024 * 1024; // how far ahead the file is grown
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MD5Summer md5;
+    private DigestStage digest; // where extents are summed with MD5
+    private TreeHash tree; // or hashed as a tree, if not null
+    private long allocated = 0; // how long the file has been made
+    private long summed = 0; // the extent to hand over next
+    private HashMap<Long, Extent> extents = new HashMap<Long, Extent>(); // by extent number
+
+    /**
+        Extent
+        the buffer for one extent of the file and how much of it has arrived
+    */
+    private static class Extent
+    {
+        ByteBuffer buf;
+        int filled = 0; // bytes copied in so far
+        boolean written = false;
+    }
+
+    /**
+        FileSink()
+        create, or empty, the file to store into
+        @param name - the file's path, or null to store nothing
+        @param m - what to sum the file's bytes with, in order
+        @param d - the stage to sum them on
+    */
+    public FileSink(String name, MD5Summer m, DigestStage d) throws IOException
+    {
+        if (name != null)
+        {
+            file = new RandomAccessFile(name, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+        }
+        md5 = m;
+        digest = d;
+    }
+
+    /**
+        FileSink()
+        create, or empty, the file to store into
+        @param name - the file's path, or null to store nothing
+        @param t - the tree to hash the file's chunks into
+    */
+    public FileSink(String name, TreeHash t) throws IOException
+    {
+        this(name, null, null);
+        tree = t;
+    }
+
+    /**
+        write()
+        store a segment at its place in the file. each byte of the file must
+        be given exactly once.
+        @param pos - where in the file the segment goes
+        @param src - the buffer holding the segment
+        @param off - where in src the segment starts
+        @param len - the segment's length
+    */
+    public void write(long pos, ByteBuffer src, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            long number = pos / EXTENT;
+            int at = (int)(pos % EXTENT);
+            int n = Math.min(len, EXTENT - at);
+            Extent e = extent(number);
+            e.buf.put(at, src, off, n);
+            e.filled += n;
+            if (e.filled == EXTENT)
+            {
+                flush(number, e, EXTENT);
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+        finish()
+        write out whatever is left, cut the file to its length and close it
+        @param length - how many bytes the file has. every one of them must
+            have been given to write().
+    */
+    public void finish(long length) throws IOException
+    {
+        // every extent before the last one is full, so only that one is left
+        if (length % EXTENT != 0)
+        {
+            long number = length / EXTENT;
+            flush(number, extent(number), (int)(length % EXTENT));
+        }
+        if (file != null)
+        {
+            file.setLength(length);
+            channel.force(true);
+            file.close();
+        }
+    }
+
+    /**
+        close()
+        give up on the file, leaving whatever was written
+    */
+    public void close()
+    {
+        try
+        {
+            if (file != null)
+            {
+                file.close();
+            }
+        }
+        catch (IOException e){}
+    }
+
+    /**
+        extent()
+        get the buffer for an extent, starting an empty one if nothing has
+        arrived for it yet
+        @param number - the extent's place in the file, in extents
+    */
+    private Extent extent(long number)
+    {
+        Extent e = extents.get(number);
+        if (e == null)
+        {
+            e = new Extent();
+            e.buf = tree != null ? TreeHash.buffer() : digest.buffer();
+            extents.put(number, e);
+        }
+        return e;
+    }
+
+    /**
+        flush()
+        write an extent that is complete, then hand it to the tree hash, or
+        hand every extent that is now in order to the digest stage
+        @param number - the extent's place in the file, in extents
+        @param e - the extent
+        @param len - how much of it to write, less than EXTENT only at the end
+    */
+    private void flush(long number, Extent e, int len) throws IOException
+    {
+        if (file != null)
+        {
+            write(number * EXTENT, e.buf, len);
+        }
+        if (tree != null)
+        {
+            tree.chunk(number, e.buf, len);
+            extents.remove(number);
+            return;
+        }
+        e.written = true;
+        e.filled = len;
+        while ((e = extents.get(summed)) != null && e.written)
+        {
+            digest.submit(md5, e.buf, e.filled);
+            extents.remove(summed);
+            summed++;
+        }
+    }
+
+    /**
+        write()
+        write the start of a buffer at a place in the file, growing the file
+        ahead of it if it isn't that long yet
+        @param pos - where in the file
+        @param buf - the buffer
+        @param len - how much of it to write
+    */
+    private void write(long pos, ByteBuffer buf, int len) throws IOException
+    {
+        if (pos + len > allocated)
+        {
+            allocated = (pos + len + GROW_SIZE - 1) / GROW_SIZE * GROW_SIZE;
+            file.setLength(allocated);
+        }
+        ByteBuffer b = buf.duplicate();
+        b.limit(len).position(0);
+        while (b.hasRemaining())
+        {
+            channel.write(b, pos + b.position());
+        }
+    }
+}
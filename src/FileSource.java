@@ -0,0 +1,266 @@
+/**
+    FileSource.java
+    This class gives the client the file it sends, a segment at a time. The
+    file is mapped into memory a region at a time with FileChannel.map. A
+    segment's packet only records where in the file its payload is, and
+    read() copies the payload out of the region, or out of the file with a
+    positional read once the packet is older than the region. So the client
+    holds no payloads for what it has in flight, whatever the window, and a
+    file far bigger than the heap is never buffered in it. A region is
+    unmapped when it is garbage collected.
+
+    Something that can't be mapped or read by position, such as a pipe, is
+    read instead a large chunk at a time into a heap buffer, and each
+    segment's packet refers to its place in the chunk. Those chunks stay
+    until every packet in them is ack'd, since the bytes can't be read
+    again. A thread of its own reads them, up to READ_AHEAD chunks ahead,
+    since next() is called with the client's lock held and a pipe can take
+    any time to fill a chunk. next() only hands out chunks already read,
+    and the thread calls the ready action whenever it adds one.
+
+    Regions are a whole number of segments, so no segment is split between
+    two of them. The segment size is set once the handshake has agreed it.
+*/
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayDeque;
+
+public class FileSource
+{
+    public static final int MAP_SIZE = 64 * 1024 * 1024; // bytes in each mapped region, at most
+    public static final int READ_SIZE = 1024 * 1024; // bytes in each chunk read, at most
+    public static final int READ_AHEAD = 4; // chunks read ahead of next(), at most
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private boolean mapped; // false if the file is read a chunk at a time
+    private ByteBuffer region; // the part of the file segments are taken from
+    private long regionStart = 0; // where in the file region starts
+    private int taken = 0; // how much of region has been handed out
+    private boolean atEnd = false; // every segment has been handed out
+    private int segment = Packet.MSS; // the size of a full segment
+
+    // what isn't mapped is read on a thread of its own, guarded by this
+    private Thread reader;
+    private ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>(); // read and not handed out
+    private boolean readAll = false; // the reader found the end, or failed
+    private IOException readError; // why the reader failed, if it did
+    private boolean closed = false;
+    private Runnable ready = () -> {}; // run whenever the reader adds a chunk
+
+    /**
+        FileSource()
+        open a file to send
+        @param name - the file's path
+    */
+    public FileSource(String name) throws FileNotFoundException, IOException
+    {
+        file = new RandomAccessFile(name, "r");
+        channel = file.getChannel();
+        // a pipe or device has no size to map
+        mapped = file.length() > 0;
+        region = ByteBuffer.allocate(0);
+    }
+
+    /**
+        next()
+        take the next segment of the file
+        @param seqNum - the sequence number the segment's packet gets
+        @return a packet for the segment, or null at the end of the file or
+            while the next chunk is still being read. atEnd() tells which.
+    */
+    public Packet next(int seqNum) throws IOException
+    {
+        if (taken == region.limit() && !nextRegion())
+        {
+            return null;
+        }
+        int len = Math.min(segment, region.limit() - taken);
+        Packet p;
+        if (mapped)
+        {
+            p = new Packet(seqNum, regionStart + taken, len);
+        }
+        else
+        {
+            p = new Packet(seqNum, region, taken, len);
+        }
+        taken += len;
+        return p;
+    }
+
+    /**
+        read()
+        copy a packet's payload out of the file
+        @param p - a packet from next() that holds no payload
+        @param dst - where to copy it
+        @param at - where in dst it goes
+    */
+    public void read(Packet p, ByteBuffer dst, int at) throws IOException
+    {
+        long pos = p.filePos();
+        int len = p.dataLen();
+        if (pos >= regionStart && pos + len <= regionStart + region.limit())
+        {
+            dst.put(at, region, (int)(pos - regionStart), len);
+            return;
+        }
+        ByteBuffer d = dst.duplicate();
+        d.limit(at + len).position(at);
+        while (d.hasRemaining())
+        {
+            if (channel.read(d, pos + d.position() - at) == -1)
+            {
+                throw new EOFException("the file got shorter while it was sent");
+            }
+        }
+    }
+
+    /**
+        nextRegion()
+        move on to the part of the file after the current region
+        @return false if there is nothing more to read, or nothing read yet
+    */
+    private boolean nextRegion() throws IOException
+    {
+        if (mapped)
+        {
+            regionStart += region.limit();
+            taken = 0;
+            long size = Math.min(channel.size() - regionStart, MAP_SIZE / segment * segment);
+            if (size <= 0)
+            {
+                region = ByteBuffer.allocate(0);
+                atEnd = true;
+                return false;
+            }
+            region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, size);
+            return true;
+        }
+        synchronized (this)
+        {
+            if (reader == null)
+            {
+                reader = new Thread(this::readAhead);
+                reader.setDaemon(true);
+                reader.start();
+            }
+            if (chunks.isEmpty())
+            {
+                if (readError != null)
+                {
+                    throw readError;
+                }
+                atEnd = readAll;
+                return false;
+            }
+            regionStart += region.limit();
+            taken = 0;
+            region = chunks.poll();
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+        readAhead()
+        the reader thread's loop. each chunk is a fresh buffer, since
+        packets still refer to the ones before it, and is read without
+        the lock so next() never waits on the pipe.
+    */
+    private void readAhead()
+    {
+        try
+        {
+            boolean eof = false;
+            while (!eof)
+            {
+                ByteBuffer chunk = ByteBuffer.allocate(Math.max(READ_SIZE / segment, 1) * segment);
+                while (chunk.hasRemaining())
+                {
+                    if (channel.read(chunk) == -1)
+                    {
+                        eof = true;
+                        break;
+                    }
+                }
+                chunk.flip();
+                synchronized (this)
+                {
+                    while (chunks.size() >= READ_AHEAD && !closed)
+                    {
+                        wait();
+                    }
+                    if (closed)
+                    {
+                        return;
+                    }
+                    if (chunk.limit() > 0)
+                    {
+                        chunks.add(chunk);
+                    }
+                    readAll = eof;
+                }
+                ready.run();
+            }
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                readError = closed ? null : e;
+                readAll = true;
+            }
+            ready.run();
+        }
+        catch (InterruptedException e){}
+    }
+
+    /**
+        setReadyAction()
+        choose what the reader thread runs each time it has read another
+        chunk, or found the end, so a sender that next() turned away can
+        try again. it is run without this source's lock.
+        @param r - the action
+    */
+    public void setReadyAction(Runnable r)
+    {
+        ready = r;
+    }
+
+    /**
+        setSegmentSize()
+        choose the size of a full segment. call before next().
+        @param s - the segment size in bytes
+    */
+    public void setSegmentSize(int s)
+    {
+        segment = s;
+    }
+
+    /**
+        close()
+        close the file, and stop the reader
+    */
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+        }
+        file.close();
+    }
+
+    /**
+        atEnd()
+        determine if every segment of the file has been handed out
+    */
+    public boolean atEnd(){return atEnd;}
+}
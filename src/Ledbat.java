@@ -0,0 +1,249 @@
+/**
+    Ledbat.java
+    This class is LEDBAT congestion control (RFC 6817), for background
+    transfers that should get out of the way of everything else. It watches
+    the one way delay the timestamps on acks show. The lowest delay seen in
+    the last ten minutes is taken as the delay with an empty queue, and
+    anything above it is queueing delay. The window grows by up to a
+    segment per round trip while that is under a target, so queues stay
+    short and a Reno or CUBIC flow on the same link takes the bandwidth.
+    Losses and timeouts cut the window the same as Reno.
+
+    Over the target the window shrinks in proportion to its size, as in
+    LEDBAT++ (draft-irtf-iccrg-ledbat-plus-plus), not by at most a segment
+    per round trip as RFC 6817 has it. Slow start overshoots by a whole
+    round trip of doubling, and the RFC's decrease took longer to drain
+    that queue than a 4MB transfer lasts.
+
+    Without timestamps it can't see the queue, and is no gentler than Reno.
+*/
+
+public class Ledbat implements CongestionController
+{
+    private static final int TARGET = 25; // ms of queueing delay to aim for; RFC 6817 allows up to 100
+    private static final double GAIN = 1; // window growth under the target, in segments per round trip
+    private static final int BASE_HISTORY = 10; // minutes the base delay is the least of
+    private static final long BASE_INTERVAL = 60000000000L; // ns each of those covers
+    private static final int CURRENT_FILTER = 4; // samples the current delay is the least of
+    private static final int ALLOWED_INCREASE = 1; // segments the window may run ahead of what is in flight
+
+    private int mss = Packet.MSS; // the segment size
+    private int minCwnd = 2 * Packet.MSS;
+    private double cwnd = 2 * Packet.MSS;
+    private int ssthresh = Integer.MAX_VALUE;
+    private boolean recovery = false;
+    private int inFlight = 0; // bytes in flight after the last ack
+
+    // the state before the last timeout, in case it was spurious
+    private double priorCwnd = 0;
+    private int priorSsthresh = 0;
+    private boolean priorRecovery = false;
+
+    private int[] baseDelays = new int[BASE_HISTORY]; // the least delay in each recent minute
+    private int baseCount = 0; // how many minutes have a delay
+    private long baseStamp = 0; // when the current minute began, in ns
+
+    private int[] currentDelays = new int[CURRENT_FILTER]; // the latest delay samples
+    private int currentCount = 0; // how many samples there have been
+
+    /**
+        connected()
+        start with the largest window the server can advertise as the
+        threshold, so slow start runs until the first loss or queue
+        @param maxWindow - the largest window the server can advertise
+        @param mss - the segment size
+    */
+    public void connected(int maxWindow, int mss)
+    {
+        this.mss = mss;
+        minCwnd = 2 * mss;
+        cwnd = minCwnd;
+        ssthresh = maxWindow;
+    }
+
+    /**
+        onAck()
+        grow the window: by the bytes ack'd in slow start, and by a segment
+        per round trip after while the queueing delay is under the target.
+        over it, shrink the window by its size times how far over, at most
+        by half each round trip. slow start ends early once the queue
+        reaches three quarters of the target. the ack that ends recovery
+        starts again from the threshold.
+        @param acked - how many new bytes the ack covered
+    */
+    public void onAck(int acked)
+    {
+        if (recovery)
+        {
+            recovery = false;
+            cwnd = ssthresh; // the flight was brought down to it
+        }
+        int queued = queueingDelay();
+        if (cwnd < ssthresh && queued * 4 > TARGET * 3)
+        {
+            ssthresh = (int)cwnd;
+        }
+        if (cwnd < ssthresh)
+        {
+            cwnd += acked;
+        }
+        else if (queued < TARGET)
+        {
+            cwnd += GAIN * acked * mss / cwnd;
+        }
+        else
+        {
+            // per round trip that is the gain less cwnd * (queued / TARGET - 1)
+            double over = Math.min((double)queued / TARGET - 1, 0.5);
+            cwnd += GAIN * acked * mss / cwnd - over * acked;
+        }
+        // don't let the window run ahead of what is actually sent. the
+        // client keeps a segment of the window back, so allow for that too.
+        // an ack the server held back covers several segments at once, and
+        // the window may grow by all of them, or slow start would only add
+        // a segment per round trip
+        int maxAllowed = inFlight + acked + Math.max(acked, ALLOWED_INCREASE * mss) + mss;
+        if (cwnd > maxAllowed)
+        {
+            cwnd = maxAllowed;
+        }
+        if (cwnd < minCwnd)
+        {
+            cwnd = minCwnd;
+        }
+    }
+
+    /**
+        onLoss()
+        halve the window and go into recovery
+    */
+    public void onLoss(int inFlight, int acked)
+    {
+        ssthresh = Math.max((int)cwnd / 2, minCwnd);
+        cwnd = ssthresh;
+        recovery = true;
+    }
+
+    /**
+        onTimeout()
+        halve the threshold and start again from a small window
+    */
+    public void onTimeout()
+    {
+        priorCwnd = cwnd;
+        priorSsthresh = ssthresh;
+        priorRecovery = recovery;
+        ssthresh = Math.max((int)cwnd / 2, minCwnd);
+        // the client keeps one segment of the window back
+        cwnd = 2 * mss;
+        recovery = false;
+    }
+
+    /**
+        onUndo()
+        go back to the state from before the last timeout, keeping any
+        growth since
+    */
+    public void onUndo()
+    {
+        cwnd = Math.max(cwnd, priorCwnd);
+        ssthresh = Math.max(ssthresh, priorSsthresh);
+        recovery = priorRecovery;
+    }
+
+    /**
+        onRttSample()
+        LEDBAT goes by one way delay, not round trip time
+    */
+    public void onRttSample(double rtt){}
+
+    /**
+        onDelaySample()
+        keep the least delay of each minute, and the latest few delays
+        @param delay - the one way delay in ms, plus the clock offset
+    */
+    public void onDelaySample(int delay)
+    {
+        long now = System.nanoTime();
+        if (baseCount == 0 || now - baseStamp >= BASE_INTERVAL)
+        {
+            // a new minute; the oldest one is forgotten
+            System.arraycopy(baseDelays, 0, baseDelays, 1, BASE_HISTORY - 1);
+            baseDelays[0] = delay;
+            baseCount = Math.min(baseCount + 1, BASE_HISTORY);
+            baseStamp = now;
+        }
+        else if (delay - baseDelays[0] < 0)
+        {
+            baseDelays[0] = delay;
+        }
+        currentDelays[currentCount % CURRENT_FILTER] = delay;
+        currentCount++;
+    }
+
+    /**
+        queueingDelay()
+        get how far the current delay is above the base delay. the clock
+        offset is in both, so it cancels out. the clocks wrap, so delays are
+        compared by their difference.
+        @return the queueing delay in ms, 0 if there are no samples
+    */
+    private int queueingDelay()
+    {
+        if (currentCount == 0)
+        {
+            return 0;
+        }
+        int base = least(baseDelays, baseCount);
+        int current = least(currentDelays, Math.min(currentCount, CURRENT_FILTER));
+        return current - base;
+    }
+
+    // the least of the first n delays
+    private static int least(int[] delays, int n)
+    {
+        int min = delays[0];
+        for (int i = 1; i < n; i++)
+        {
+            if (delays[i] - min < 0)
+            {
+                min = delays[i];
+            }
+        }
+        return min;
+    }
+
+    /**
+        onRateSample()
+        keep the bytes in flight, which caps the window in the next onAck()
+    */
+    public void onRateSample(RateSampler.Sample rs, int inFlight)
+    {
+        this.inFlight = inFlight;
+    }
+
+    /**
+        pacingRate()
+        LEDBAT sends as much as the window allows at once
+    */
+    public long pacingRate(){return 0;}
+
+    public boolean usesPrr(){return true;}
+    public boolean inRecovery(){return recovery;}
+    public int cwnd(){return (int)cwnd;}
+    public int ssthresh(){return ssthresh;}
+
+    /**
+        state()
+        get the name of the congestion state
+    */
+    public String state()
+    {
+        if (recovery)
+            return "Fast recovery";
+        else if (cwnd < ssthresh)
+            return "Slow start";
+        else
+            return "Congestion avoidance";
+    }
+}
@@ -0,0 +1,344 @@
+/**
+    LinkEmulator.java
+    This class emulates a network path between fcntcp clients and a server,
+    so transfers can be measured over a long or lossy link on one machine.
+    Clients send to the emulator's port; it relays their datagrams to the
+    server and the server's replies back, delaying each one and dropping
+    some of them. Traffic towards the server can also be held to a
+    bottleneck rate with a limited queue, where it is tail dropped.
+
+    java LinkEmulator <port> <server address> <server port> <delay ms>
+        [loss] [rate in kB/s] [queue in kB] [mtu] [spike ms]
+
+    delay is one way, so the round trip time is twice it. loss is the chance
+    to drop each datagram in each direction. rate 0 means no bottleneck.
+    mtu is the largest IP packet the link carries; a datagram that makes a
+    bigger one is dropped, as with the don't fragment bit set. 0, the
+    default, carries any. with a spike, the link towards the server stalls
+    for that long about once a second, the way a wireless link does while
+    it retries, and what is sent meanwhile waits behind the stall in order.
+    When the emulator is stopped it prints how many datagrams and bytes it
+    relayed each way, and with a bottleneck, how long each client's
+    datagrams waited in its queue.
+*/
+import java.io.IOException;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LinkEmulator
+{
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024; // so bursts aren't lost before the link
+
+    private DatagramSocket front; // faces the clients
+    private InetSocketAddress serverAddr;
+    private HashMap<SocketAddress, DatagramSocket> upstream; // one socket per client, faces the server
+
+    private long delay; // one way delay in ns
+    private double loss;
+    private long rate; // bottleneck towards the server in bytes per second, 0 for none
+    private long queueLimit; // bytes the bottleneck can queue
+    private int mtu = 0; // the largest IP packet the link carries, 0 for any
+    private long spike = 0; // how long the link stalls for, in ns, 0 for never
+    private long nextSpike = 0; // when it stalls next, in ns
+    private long stalledUntil = 0; // when the current stall ends, in ns
+
+    private long lastDeparture = 0; // when the bottleneck is free again, in ns
+    private DelayQueue<Delivery> inFlight = new DelayQueue<Delivery>();
+    private Random rand = new Random();
+
+    // what was relayed, for the summary printed on exit
+    private AtomicLong upPackets = new AtomicLong(), upBytes = new AtomicLong();
+    private AtomicLong downPackets = new AtomicLong(), downBytes = new AtomicLong();
+    private LinkedHashMap<SocketAddress, QueueStats> queueStats = new LinkedHashMap<SocketAddress, QueueStats>();
+
+    /**
+        QueueStats
+        how long one client's datagrams waited at the bottleneck
+    */
+    private static class QueueStats
+    {
+        long packets = 0;
+        long waited = 0; // ns in all
+        long maxWait = 0; // ns
+    }
+
+    /**
+        Delivery
+        a datagram on its way, and when it should come out of the link
+    */
+    private static class Delivery implements Delayed
+    {
+        DatagramSocket via;
+        DatagramPacket datagram;
+        long at; // System.nanoTime() to send it at
+
+        Delivery(DatagramSocket v, DatagramPacket d, long a)
+        {
+            via = v;
+            datagram = d;
+            at = a;
+        }
+
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o)
+        {
+            return Long.compare(at, ((Delivery)o).at);
+        }
+    }
+
+    /**
+        LinkEmulator()
+        Construct a new link emulator
+        @param port - the port clients send to
+        @param server - the address of the real server
+        @param d - the one way delay in ms
+        @param l - the chance to drop each datagram
+        @param r - the bottleneck rate in bytes per second, 0 for none
+        @param q - the bottleneck queue in bytes
+    */
+    public LinkEmulator(int port, InetSocketAddress server, int d, double l, long r, long q) throws IOException
+    {
+        front = new DatagramSocket(port);
+        front.setReceiveBufferSize(SOCKET_BUFFER);
+        serverAddr = server;
+        upstream = new HashMap<SocketAddress, DatagramSocket>();
+        delay = TimeUnit.MILLISECONDS.toNanos(d);
+        loss = l;
+        rate = r;
+        queueLimit = q;
+    }
+
+    /**
+        start()
+        relay datagrams until the process is killed
+    */
+    public void start() throws IOException
+    {
+        Thread sender = new Thread(new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        Delivery d = inFlight.take();
+                        d.via.send(d.datagram);
+                    }
+                }
+                catch (InterruptedException e){}
+                catch (IOException e){e.printStackTrace();}
+            }
+        });
+        sender.start();
+        DatagramPacket in = new DatagramPacket(new byte[65536], 65536);
+        while (true)
+        {
+            in.setLength(65536);
+            front.receive(in);
+            SocketAddress client = in.getSocketAddress();
+            DatagramSocket up = upstream.get(client);
+            if (up == null)
+            {
+                up = new DatagramSocket();
+                up.setReceiveBufferSize(SOCKET_BUFFER);
+                upstream.put(client, up);
+                listenUpstream(up, client);
+            }
+            byte[] data = Arrays.copyOf(in.getData(), in.getLength());
+            upPackets.incrementAndGet();
+            upBytes.addAndGet(data.length);
+            DatagramPacket out = new DatagramPacket(data, data.length, serverAddr);
+            toServer(up, out, client);
+        }
+    }
+
+    /**
+        toServer()
+        put a datagram from a client on the link, through the bottleneck
+        @param up - the socket that relays this client's traffic
+        @param out - the datagram
+        @param client - the client it came from
+    */
+    private synchronized void toServer(DatagramSocket up, DatagramPacket out, SocketAddress client)
+    {
+        if (rand.nextDouble() < loss || tooBig(out))
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        if (spike > 0 && now - nextSpike >= 0)
+        {
+            stalledUntil = now + spike;
+            nextSpike = stalledUntil + (long)(-Math.log(1 - rand.nextDouble()) * 1e9);
+        }
+        long departure = stalledUntil - now > 0 ? stalledUntil : now;
+        if (rate > 0)
+        {
+            long start = lastDeparture - departure > 0 ? lastDeparture : departure;
+            // a stall holds datagrams back without filling the queue
+            long queued = (start - departure) * rate / 1000000000L;
+            if (queued + out.getLength() > queueLimit)
+            {
+                return; // tail drop
+            }
+            departure = start + out.getLength() * 1000000000L / rate;
+            lastDeparture = departure;
+            QueueStats q = queueStats.get(client);
+            if (q == null)
+            {
+                q = new QueueStats();
+                queueStats.put(client, q);
+            }
+            q.packets++;
+            q.waited += start - now;
+            q.maxWait = Math.max(q.maxWait, start - now);
+        }
+        inFlight.put(new Delivery(up, out, departure + delay));
+    }
+
+    /**
+        toClient()
+        put a datagram from the server on the link
+        @param out - the datagram, addressed to the client
+    */
+    private synchronized void toClient(DatagramPacket out)
+    {
+        if (rand.nextDouble() < loss || tooBig(out))
+        {
+            return;
+        }
+        inFlight.put(new Delivery(front, out, System.nanoTime() + delay));
+    }
+
+    /**
+        tooBig()
+        determine if a datagram is too big for the link, counting the IPv4
+        and UDP headers it would have
+        @param d - the datagram
+    */
+    private boolean tooBig(DatagramPacket d)
+    {
+        return mtu > 0 && d.getLength() + 28 > mtu;
+    }
+
+    /**
+        setMtu()
+        choose the largest IP packet the link carries
+        @param m - the MTU in bytes, 0 for any
+    */
+    public void setMtu(int m)
+    {
+        mtu = m;
+    }
+
+    /**
+        setSpike()
+        choose how long the link stalls for about once a second
+        @param ms - the length of a stall in ms, 0 for none
+    */
+    public synchronized void setSpike(int ms)
+    {
+        spike = TimeUnit.MILLISECONDS.toNanos(ms);
+        nextSpike = System.nanoTime() + 1000000000L;
+    }
+
+    /**
+        listenUpstream()
+        start a thread relaying the server's replies to one client
+        @param up - the socket the client's traffic goes to the server on
+        @param client - the client's address
+    */
+    private void listenUpstream(final DatagramSocket up, final SocketAddress client)
+    {
+        Thread t = new Thread(new Runnable(){
+            public void run()
+            {
+                try
+                {
+                    DatagramPacket in = new DatagramPacket(new byte[65536], 65536);
+                    while (true)
+                    {
+                        in.setLength(65536);
+                        up.receive(in);
+                        byte[] data = Arrays.copyOf(in.getData(), in.getLength());
+                        downPackets.incrementAndGet();
+                        downBytes.addAndGet(data.length);
+                        toClient(new DatagramPacket(data, data.length, client));
+                    }
+                }
+                catch (IOException e){e.printStackTrace();}
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+        printStats()
+        print how much traffic was relayed each way
+    */
+    private void printStats()
+    {
+        long up = upPackets.get(), down = downPackets.get();
+        System.out.println("to server: "+up+" datagrams, "+upBytes.get()+" bytes");
+        System.out.println("to client: "+down+" datagrams, "+downBytes.get()+" bytes");
+        if (up > 0)
+        {
+            System.out.printf("replies per datagram sent: %.3f%n", 1.0 * down / up);
+        }
+        synchronized (this)
+        {
+            for (Map.Entry<SocketAddress, QueueStats> e : queueStats.entrySet())
+            {
+                QueueStats q = e.getValue();
+                System.out.printf("queueing delay for %s: mean %.1f ms, max %.1f ms over %d datagrams%n",
+                    e.getKey(), q.waited / 1e6 / q.packets, q.maxWait / 1e6, q.packets);
+            }
+        }
+    }
+
+    /**
+        main method to run the emulator
+    */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 4)
+        {
+            System.out.println("java LinkEmulator <port> <server address> <server port> <delay ms> [loss] [rate in kB/s] [queue in kB] [mtu] [spike ms]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        InetSocketAddress server = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+        int delay = Integer.parseInt(args[3]);
+        double loss = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+        long rate = args.length > 5 ? Long.parseLong(args[5]) * 1000 : 0;
+        long queue = args.length > 6 ? Long.parseLong(args[6]) * 1000 : 100 * 1000;
+        final LinkEmulator emulator = new LinkEmulator(port, server, delay, loss, rate, queue);
+        emulator.setMtu(args.length > 7 ? Integer.parseInt(args[7]) : 0);
+        emulator.setSpike(args.length > 8 ? Integer.parseInt(args[8]) : 0);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+            public void run()
+            {
+                emulator.printStats();
+            }
+        }));
+        emulator.start();
+    }
+}
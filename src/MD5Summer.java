@@ -11,6 +11,7 @@ import java.security.NoSuchAlgorithmException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.File;
+import java.nio.ByteBuffer;
 
 public class MD5Summer
 {
@@ -42,6 +43,28 @@ public class MD5Summer
         summer.update(b, offset, len);
     }
 
+    /**
+        next()
+        Add bytes from a buffer to the MD5 sum, without moving the buffer's
+        position
+        @param b - the buffer
+        @param offset - the byte to start from
+        @param len - how many bytes to add
+    */
+    public void next(ByteBuffer b, int offset, int len)
+    {
+        if (b.hasArray())
+        {
+            summer.update(b.array(), b.arrayOffset() + offset, len);
+        }
+        else
+        {
+            ByteBuffer d = b.duplicate();
+            d.limit(offset + len).position(offset);
+            summer.update(d);
+        }
+    }
+
     /**
         getResult()
         Get the resulting MD5 sum of what has been summed so far.
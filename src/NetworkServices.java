@@ -42,6 +42,16 @@ public class NetworkServices
 			(bytes[start+3] & 0xff);
 	}
 
+	/**
+	 * get the clock used for the timestamps option. only differences
+	 * between two readings mean anything, and it wraps around
+	 * @return - the time in ms
+	 */
+	public static int timestamp()
+	{
+		return (int)(System.nanoTime() / 1000000);
+	}
+
     /**
         byteToString()
         get the binary representation of a byte
@@ -0,0 +1,132 @@
+/**
+    Pacer.java
+    This class spaces out a client's sends. When the congestion controller
+    gives a pacing rate, the client only sends a packet once the previous
+    one's share of the rate has passed; if it has to wait, it asks the pacer
+    to wake it. One thread sleeps until the earliest requested time and then
+    lets the client send again. The timing wheel's 10ms tick is far too
+    coarse for this, since at a few MB/s packets go out every few hundred us.
+    The client's reorder timer and tail loss probe wake it the same way.
+*/
+import java.io.IOException;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class Pacer implements Runnable
+{
+    private Client client;
+    private long wakeAt = 0; // System.nanoTime() to wake the client at, 0 for none
+    private Thread thread;
+    private volatile boolean done = false;
+
+    /**
+        Pacer()
+        Construct a new pacer
+        @param c - the client to wake
+    */
+    public Pacer(Client c)
+    {
+        client = c;
+    }
+
+    /**
+        start()
+        start the pacing thread
+    */
+    public synchronized void start()
+    {
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+        stop()
+        stop the pacing thread
+    */
+    public synchronized void stop()
+    {
+        done = true;
+        notifyAll();
+        LockSupport.unpark(thread);
+    }
+
+    /**
+        wake()
+        ask to be woken at a time. an earlier request already waiting wins.
+        a later one waits behind it, and an earlier one cuts short the
+        sleep for the one before, so a paced send never waits out the tail
+        loss probe.
+        @param at - the System.nanoTime() to wake at
+    */
+    public synchronized void wake(long at)
+    {
+        if (wakeAt == 0 || at - wakeAt < 0)
+        {
+            wakeAt = at;
+            notifyAll();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+        next()
+        wait until there is a wake time, and take it once it has come. it
+        stays in place while the thread sleeps, so an earlier one can
+        replace it.
+        @return how long to sleep in ns before asking again, or 0 or less
+            once the time has come
+    */
+    private synchronized long next() throws InterruptedException
+    {
+        while (wakeAt == 0 && !done)
+        {
+            wait();
+        }
+        if (done)
+        {
+            return 0;
+        }
+        long sleep = wakeAt - System.nanoTime();
+        if (sleep <= 0)
+        {
+            wakeAt = 0;
+        }
+        return sleep;
+    }
+
+    /**
+        run()
+        the main loop of the pacing thread. as with the timing wheel, the
+        client is called outside the pacer's lock.
+    */
+    public void run()
+    {
+        try
+        {
+            while (!done)
+            {
+                long sleep = next();
+                if (sleep > 0)
+                {
+                    // wake() unparks the thread if the time moves earlier
+                    LockSupport.parkNanos(this, sleep);
+                }
+                else if (!done)
+                {
+                    try
+                    {
+                        client.pacerWoke();
+                    }
+                    catch (IOException e)
+                    {
+                        // what wasn't sent goes again on a later wake or
+                        // timeout, so keep pacing
+                        client.print("Failed to send a paced packet: "+e.getMessage());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e){}
+    }
+}
@@ -4,7 +4,22 @@
 
     This class provides a wrapper for an fcntcp packet. It provides several 
     useful operations that can be performed on a packet. 
+
+    A packet's payload stays in the ByteBuffer it arrived in, or the region
+    of the file it was taken from, and is not copied until it is sent. A
+    received packet is decoded straight out of the receive buffer through a
+    PacketView. writeHeader() writes a packet to send into a send buffer,
+    header and payload, or just the header if the payload already has room
+    in front of it.
 */
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 
     /*
@@ -12,25 +27,74 @@
     0                   1                   2                   3
     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-   |                               0                               | 0 - 3
+   |                         Connection ID                         | 0 - 3
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
    |                        Sequence Number                        | 4 - 7
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
    |                    Acknowledgment Number                      | 8 - 11
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-   |               |     |A| |R|S|F|                               |
-   |        0      |  0  |C|0|S|Y|I|            Window             | 12 - 15
-   |               |     |K| |T|N|N|                               |
+   |  Data |       |C|   |A| |R|S|F|                               |
+   | Offset|   0   |R| 0 |C|0|S|Y|I|            Window             | 12 - 15
+   |       |       |C|   |K| |T|N|N|                               |
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
    |           Checksum            |               0               | 16 - 19
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-   |                             data                              | 20 + 
+   |                     or CRC32C, if CRC is set                  | 16 - 19
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |                    Options                    |    Padding    | 20 - 
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |                             data                              | 4 * Data Offset +
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
+        Checksum is the Internet checksum (RFC 1071) of the whole packet,
+        header and data, with the checksum field taken as zero: the one's
+        complement of the one's complement sum of its 16 bit words. An odd
+        last byte is padded with a zero byte.
+
+        If the CRC flag is set, bytes 16-19 are instead the CRC32C of the
+        whole packet with those four bytes taken as zero. Both sides use it
+        for every packet after the SYN and SYNACK once it is agreed there,
+        and drop packets without it.
+
+        Data Offset is the length of the header in 32 bit words, like in TCP.
+        Zero is read as 5, a header with no options. Options are encoded like
+        TCP options: a kind byte, a length byte covering the whole option,
+        then the value. Kinds 0 (end of list) and 1 (no-op) are a single byte.
+
+        Window Scale (kind 3, length 3) - only in SYN and SYNACK. The value
+        is the shift count the sender applies to the window it advertises
+        from then on. It is only used if both sides send it.
+
+        SACK Permitted (kind 4, length 2) - only in SYN and SYNACK. Both sides
+        send it to turn on selective acknowledgments.
+
+        SACK (kind 5, length 2 + 8n) - in acks. n blocks of a left and right
+        edge, each a range of bytes above the ack number that the receiver
+        holds. The first block holds the most recently received packet.
+
+        Alternate Checksum (kind 14, length 3) - only in SYN and SYNACK, as in
+        RFC 1146. The value is 1 for CRC32C; no others are defined. The client
+        offers it and the server sends it back to agree.
+
+        Timestamps (kind 8, length 10) - a TSval and a TSecr, each 32 bits.
+        The client offers it in the SYN and, if the SYNACK has it too, both
+        sides put it in every packet after. TSval is the sender's clock in
+        ms when the packet was sent. TSecr echoes the TSval of the last data
+        packet received, so TSval - TSecr in an ack is the one way delay
+        from client to server, plus an unknown offset between the clocks,
+        plus however long the ack was held back.
+
+        Tree Hash (kind 254, length 3) - only in SYN and SYNACK, experimental
+        as in RFC 4727. The client offers to sum the file as a Merkle tree of
+        chunks, and the value is log2 of the chunk size. The server sends it
+        back to agree, and then the client's FIN carries the tree's root as
+        its data.
+
     */
 
 public class Packet
 {
+    private int connId;
     private int seqNum;
     private int ackNum;
     private int ack;
@@ -38,15 +102,72 @@ public class Packet
     private int syn;
     private int fin;
     private int window;
-    private byte[] checksum;
-    private byte[] data;
+    private int wscale = -1; // window scale option, -1 if not present
+    private boolean sackPermitted = false;
+    private int[] sack; // SACK block edges, left and right in pairs, null if none
+    private boolean timestamps = false; // the timestamps option is present
+    private int tsVal; // the sender's clock when this was sent
+    private int tsEcr; // the timestamp echoed back
+    private int checksum; // the checksum or CRC field as received or last written
+    private boolean valid = true; // the checksum of a received packet matched
+    private boolean crc = false; // the CRC flag: a CRC32C instead of the checksum
+    private int altChecksum = -1; // alternate checksum option, -1 if not present
+    private int mss = -1; // maximum segment size option, -1 if not present
+    private int probe = -1; // path MTU probe option, the size probed, -1 if not present
+    private int treeHash = -1; // tree hash option, log2 of the chunk size, -1 if not present
+    private ByteBuffer buf; // holds the payload, null if there is none or it is still in the file
+    private int dataOff; // where the payload starts in buf
     private int dataLen;
+    private long filePos = -1; // where the payload is in the file being sent, -1 if it isn't
 
     private boolean receiverAckd = false;
+    private long sentAt = 0; // System.nanoTime() of the last transmission
+    private int transmissions = 0; // how many times the sender sent this packet
+    private boolean stampDistinct = false; // the last copy sent was stamped differently from the one before
+    private boolean lost = false; // the sender gave up on the last copy sent
+
+    // the sender's delivery state when this packet was last sent, for rate samples
+    private long delivered = 0; // bytes delivered so far
+    private long deliveredTime = 0; // when that count last grew, in ns
+    private long firstSentTime = 0; // when the rate interval started, in ns
+    private boolean appLimited = false; // the sender had run out of data
 
     public static final int headerLen = 20;
-    public static final int MSS = 1000;
-    public static final int MTU = MSS + headerLen;
+    public static final int maxHeaderLen = 60;
+    public static final int MSS = 1000; // the segment size unless a bigger one is agreed
+    public static final int MTU = MSS + maxHeaderLen;
+    public static final int MAX_MSS = 65507 - maxHeaderLen; // what fits in the largest UDP datagram
+    public static final int maxWindow = 0xffff; // largest value of the window field
+    public static final int maxWindowScale = 14;
+
+    // option kinds
+    public static final int OPT_EOL = 0;
+    public static final int OPT_NOP = 1;
+    public static final int OPT_MSS = 2;
+    public static final int OPT_WSCALE = 3;
+    public static final int OPT_SACK_PERMITTED = 4;
+    public static final int OPT_SACK = 5;
+    public static final int OPT_TIMESTAMPS = 8;
+    public static final int OPT_ALT_CHECKSUM = 14;
+    public static final int OPT_PROBE = 253; // experimental (RFC 4727): a path MTU probe, or its ack
+    public static final int OPT_TREE_HASH = 254; // experimental (RFC 4727): sum the file as a Merkle tree
+
+    // alternate checksums
+    public static final int CHECKSUM_CRC32C = 1;
+
+    public static final int maxOptionsLen = maxHeaderLen - headerLen;
+
+    // stands in for the CRC32C field while it is computed
+    private static final byte[] ZEROS = new byte[4];
+
+    // every packet a thread encodes or decodes goes through the same view,
+    // and the same CRC32C when the CRC flag is set
+    private static final ThreadLocal<PacketView> VIEW = ThreadLocal.withInitial(PacketView::new);
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    // reads 8 bytes of a buffer as one long, for summing a word at a time
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     /**
         Packet()
@@ -83,10 +204,43 @@ public class Packet
         this.syn = syn;
         this.fin = fin;
         this.window = window;
-        this.data = data;
+        this.buf = data == null ? null : ByteBuffer.wrap(data);
         this.dataLen = dataLen;
     }
 
+    /**
+        Packet()
+        Construct a new data packet around a payload that is already in a
+        buffer, such as a region of the file being sent.
+        @param seqNum - the sequence number of this packet
+        @param b - the buffer holding the payload
+        @param off - where the payload starts
+        @param len - the length of the payload
+    */
+    public Packet(int seqNum, ByteBuffer b, int off, int len)
+    {
+        this.seqNum = seqNum;
+        this.buf = b;
+        this.dataOff = off;
+        this.dataLen = len;
+    }
+
+    /**
+        Packet()
+        Construct a new data packet whose payload is left in the file being
+        sent. the packet holds no copy of it, so the sender has to read the
+        payload in behind the header each time before writeHeader().
+        @param seqNum - the sequence number of this packet
+        @param pos - where the payload is in the file
+        @param len - the length of the payload
+    */
+    public Packet(int seqNum, long pos, int len)
+    {
+        this.seqNum = seqNum;
+        this.filePos = pos;
+        this.dataLen = len;
+    }
+
     /**
         Packet()
         Construct a new packet from a byte array. This will extract the header
@@ -94,135 +248,336 @@ public class Packet
     */
     public Packet(byte[] bytes)
     {
-        // printHeader(bytes);
-
-        // ignore bytes 0-3
-        int offset = 4;
-        // get seq num from bytes 4-7
-        this.seqNum = NetworkServices.bytesToInt(bytes, offset);
-        offset += 4;
-        // get ack num from bytes 8-11
-        this.ackNum = NetworkServices.bytesToInt(bytes, offset);
-        offset += 4;
-        // ignore byte 12
-        offset += 1;
-        // get flags from byte 13
-        byte flags = bytes[offset++];
-        this.ack = 0;
-        this.rst = 0;
-        this.syn = 0;
-        this.fin = 0;
-        if ((flags & 0x10) != 0) { this.ack = 1; }
-        if ((flags & 0x04) != 0) { this.rst = 1; }
-        if ((flags & 0x02) != 0) { this.syn = 1; }
-        if ((flags & 0x01) != 0) { this.fin = 1; }
-        // get window from bytes 14-15
-        window = (NetworkServices.bytesToInt(bytes, offset-2) & 0x0000ffff);
-        // get checksum from bytes 16-17
-        checksum = new byte[2];
-        checksum[0] = bytes[offset++];
-        checksum[1] = bytes[offset++];
-        // payload processing
-        if (bytes.length == headerLen)
+        this(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+        Packet()
+        Construct a new packet from the first length bytes of a byte array,
+        such as a receive buffer that is bigger than the datagram.
+        @param bytes - the bytes received
+        @param length - how many of the bytes are the packet
+    */
+    public Packet(byte[] bytes, int length)
+    {
+        this(ByteBuffer.wrap(bytes), 0, length);
+    }
+
+    /**
+        Packet()
+        Construct a new packet from where it sits in a buffer. The header is
+        read in place, and the payload is left where it is, so the buffer
+        can't be reused while this packet is.
+        @param b - the buffer, big endian
+        @param at - where the packet starts
+        @param length - how many bytes the packet is, at least headerLen
+    */
+    public Packet(ByteBuffer b, int at, int length)
+    {
+        read(b, at, length);
+    }
+
+    /**
+        read()
+        decode a packet into this one, in place of whatever it held, so a
+        receive loop can decode every datagram into the same packet. what
+        is kept past the next read has to be copied out first, and like the
+        constructor, the payload is left in the buffer.
+        @param b - the buffer, big endian
+        @param at - where the packet starts
+        @param length - how many bytes the packet is, at least headerLen
+        @return this packet
+    */
+    public Packet read(ByteBuffer b, int at, int length)
+    {
+        PacketView v = VIEW.get().wrap(b, at);
+        connId = v.connId();
+        seqNum = v.seqNum();
+        ackNum = v.ackNum();
+        int hlen = v.headerLen();
+        if (hlen > length)
         {
-            data = null;
-            dataLen = 0;
+            hlen = length;
+        }
+        int flags = v.flags();
+        ack = (flags & PacketView.FLAG_ACK) != 0 ? 1 : 0;
+        rst = (flags & PacketView.FLAG_RST) != 0 ? 1 : 0;
+        syn = (flags & PacketView.FLAG_SYN) != 0 ? 1 : 0;
+        fin = (flags & PacketView.FLAG_FIN) != 0 ? 1 : 0;
+        crc = (flags & PacketView.FLAG_CRC) != 0;
+        window = v.window();
+        // the CRC32C is bytes 16-19, the checksum bytes 16-17. summed with
+        // the checksum, the packet comes to all ones if nothing changed on
+        // the way
+        if (crc)
+        {
+            checksum = v.crc();
+            valid = length >= headerLen && crc32c(b, at, length) == checksum;
         }
         else
         {
-            dataLen = bytes.length - headerLen;
-            data = new byte[dataLen];
-            for (int i = headerLen; i < bytes.length; i++)
-            {
-                data[i - headerLen] = bytes[i];
-            }
+            checksum = v.checksum();
+            valid = sum(b, at, length) == 0xffff;
         }
+        // options from byte 20 up to the end of the header
+        wscale = -1;
+        sackPermitted = false;
+        sack = null;
+        timestamps = false;
+        tsVal = 0;
+        tsEcr = 0;
+        altChecksum = -1;
+        mss = -1;
+        probe = -1;
+        treeHash = -1;
+        readOptions(v, headerLen, hlen);
+        buf = null;
+        dataOff = 0;
+        dataLen = 0;
+        if (length > hlen)
+        {
+            buf = b;
+            dataOff = at + hlen;
+            dataLen = length - hlen;
+        }
+        return this;
     }
 
     /**
-        printHeader()
-        print the header bytes as bit strings
-        @param bytes - the bytes of the packet/header
+        readOptions()
+        read the options in the header. unknown options are skipped, and a
+        malformed option ends the list.
+        @param v - a view of the packet
+        @param start - the first byte of the options
+        @param end - the first byte after the header
     */
-    private void printHeader(byte[] bytes)
+    private void readOptions(PacketView v, int start, int end)
     {
-        if (!fcntcp.debug)
-            return;
-        System.out.println("Packet header:");
-        for (int i = 0; i < 5; i ++)
+        int i = start;
+        while (i < end)
         {
-            System.out.println(NetworkServices.byteArrToString(bytes, i*4, 4));
+            int kind = v.get(i);
+            if (kind == OPT_EOL)
+            {
+                return;
+            }
+            if (kind == OPT_NOP)
+            {
+                i++;
+                continue;
+            }
+            if (i + 1 >= end)
+            {
+                return;
+            }
+            int len = v.get(i+1);
+            if (len < 2 || i + len > end)
+            {
+                return;
+            }
+            if (kind == OPT_WSCALE && len == 3)
+            {
+                wscale = v.get(i+2);
+                if (wscale > maxWindowScale)
+                {
+                    wscale = maxWindowScale;
+                }
+            }
+            else if (kind == OPT_SACK_PERMITTED && len == 2)
+            {
+                sackPermitted = true;
+            }
+            else if (kind == OPT_SACK && (len - 2) % 8 == 0)
+            {
+                sack = new int[(len - 2) / 4];
+                for (int j = 0; j < sack.length; j++)
+                {
+                    sack[j] = v.getInt(i + 2 + 4*j);
+                }
+            }
+            else if (kind == OPT_MSS && len == 4)
+            {
+                mss = v.getShort(i + 2);
+            }
+            else if (kind == OPT_PROBE && len == 4)
+            {
+                probe = v.getShort(i + 2);
+            }
+            else if (kind == OPT_TREE_HASH && len == 3)
+            {
+                treeHash = v.get(i+2);
+            }
+            else if (kind == OPT_ALT_CHECKSUM && len == 3)
+            {
+                altChecksum = v.get(i+2);
+            }
+            else if (kind == OPT_TIMESTAMPS && len == 10)
+            {
+                timestamps = true;
+                tsVal = v.getInt(i + 2);
+                tsEcr = v.getInt(i + 6);
+            }
+            i += len;
         }
     }
 
     /**
-        getBytes()
-        get this packet as a byte array
-        @return - the bytes of thsi packet
+        optionsLen()
+        get the length of this packet's options before padding
     */
-    public byte[] getBytes()
+    public int optionsLen()
     {
-        checksum = new byte[2];
-
-        byte[] header = new byte[headerLen];
-        // leave bytes 0-3 zero'd out
-        // set bytes 4-7 with sequence number
-        int offset = 4;
-        byte[] seqNumBytes = NetworkServices.intToBytes(seqNum);
-        for (int i = offset; i < offset+4; i++)
+        int len = 0;
+        if (wscale >= 0) { len += 3; }
+        if (sackPermitted) { len += 2; }
+        if (sack != null && sack.length > 0) { len += 2 + 4 * sack.length; }
+        if (timestamps) { len += 10; }
+        if (altChecksum >= 0) { len += 3; }
+        if (mss >= 0) { len += 4; }
+        if (probe >= 0) { len += 4; }
+        if (treeHash >= 0) { len += 3; }
+        return len;
+    }
+
+    /**
+        writeOptions()
+        write the options of this packet after the fixed header, padded out
+        to a whole number of 32 bit words with end of list options
+        @param v - a view of where the packet goes
+        @return the length of the options with padding
+    */
+    private int writeOptions(PacketView v)
+    {
+        int i = headerLen;
+        if (wscale >= 0)
         {
-            header[i] = seqNumBytes[i-offset];
+            v.put(i++, OPT_WSCALE);
+            v.put(i++, 3);
+            v.put(i++, wscale);
         }
-        offset += 4;
-        // set bytes 8-11 with ack num
-        byte[] ackNumBytes = NetworkServices.intToBytes(ackNum);
-        for (int i = offset; i < offset+4; i ++)
+        if (sackPermitted)
         {
-            header[i] = ackNumBytes[i-offset];
+            v.put(i++, OPT_SACK_PERMITTED);
+            v.put(i++, 2);
         }
-        offset += 4;
-        // ignore byte 12
-        offset++;
-        // set byte 13 with rest of reserved and flags
-        byte flags = 0;
-        if (ack == 1) { flags = (byte)(flags | 0x10);}
-        if (rst == 1) { flags = (byte)(flags | 0x04);}
-        if (syn == 1) { flags = (byte)(flags | 0x02);}
-        if (fin == 1) { flags = (byte)(flags | 0x01);}
-        header[offset++] = flags;
-        // set bytes 14-15 with window
-        byte[] windowBytes = NetworkServices.intToBytes(window);
-        header[offset++] = windowBytes[2];
-        header[offset++] = windowBytes[3];
-        // set bytes 16-17 with checksum
-
-        // TODO generate checksum
-        checksum = new byte[2];
-
-        header[offset++] = checksum[0];
-        header[offset++] = checksum[1];
-        // leave bytes 18-19 zero
-        // header is done
-
-
-
-        if (dataLen == 0)
+        if (sack != null && sack.length > 0)
         {
-            return header;
+            v.put(i++, OPT_SACK);
+            v.put(i++, 2 + 4 * sack.length);
+            for (int j = 0; j < sack.length; j++)
+            {
+                v.putInt(i, sack[j]);
+                i += 4;
+            }
         }
-        byte[] completePacket = new byte[headerLen+dataLen];
-        for (int i = 0; i < headerLen; i++)
+        if (timestamps)
         {
-            completePacket[i] = header[i];
+            v.put(i++, OPT_TIMESTAMPS);
+            v.put(i++, 10);
+            v.putInt(i, tsVal);
+            v.putInt(i + 4, tsEcr);
+            i += 8;
         }
-        for (int i = 0; i < dataLen; i++)
+        if (altChecksum >= 0)
         {
-            completePacket[i+headerLen] = data[i];
+            v.put(i++, OPT_ALT_CHECKSUM);
+            v.put(i++, 3);
+            v.put(i++, altChecksum);
         }
-        return completePacket;
+        if (mss >= 0)
+        {
+            v.put(i++, OPT_MSS);
+            v.put(i++, 4);
+            v.putShort(i, mss);
+            i += 2;
+        }
+        if (probe >= 0)
+        {
+            v.put(i++, OPT_PROBE);
+            v.put(i++, 4);
+            v.putShort(i, probe);
+            i += 2;
+        }
+        if (treeHash >= 0)
+        {
+            v.put(i++, OPT_TREE_HASH);
+            v.put(i++, 3);
+            v.put(i++, treeHash);
+        }
+        // the buffer may hold an old packet, so the padding has to be cleared
+        while ((i & 3) != 0)
+        {
+            v.put(i++, OPT_EOL);
+        }
+        return i - headerLen;
+    }
+
+    /**
+        writeHeader()
+        write this packet's header into a buffer so that it ends at a given
+        place, and fill in the checksum. a payload already in the buffer
+        there, as a packet made around its payload has, stays where it is;
+        any other payload is copied in behind the header. a payload still in
+        the file must have been read in behind it already.
+        @param b - the buffer, big endian
+        @param end - where the header ends and the payload starts
+        @return where the packet starts; it is end - start + dataLen() long
+    */
+    public int writeHeader(ByteBuffer b, int end)
+    {
+        int hlen = headerLen + (optionsLen() + 3) / 4 * 4;
+        int start = end - hlen;
+        PacketView v = VIEW.get().wrap(b, start);
+        v.setConnId(connId);
+        v.setSeqNum(seqNum);
+        v.setAckNum(ackNum);
+        v.setHeaderLen(hlen);
+        int flags = 0;
+        if (ack == 1) { flags |= PacketView.FLAG_ACK; }
+        if (rst == 1) { flags |= PacketView.FLAG_RST; }
+        if (syn == 1) { flags |= PacketView.FLAG_SYN; }
+        if (fin == 1) { flags |= PacketView.FLAG_FIN; }
+        if (crc) { flags |= PacketView.FLAG_CRC; }
+        v.setFlags(flags);
+        v.setWindow(window);
+        v.setCrc(0); // bytes 16-19 are zero while the checksum is worked out
+        writeOptions(v);
+        if (dataLen > 0 && buf != null && (b != buf || end != dataOff))
+        {
+            b.put(end, buf, dataOff, dataLen);
+        }
+        int length = hlen + dataLen;
+        if (crc)
+        {
+            checksum = crc32c(b, start, length);
+            v.setCrc(checksum);
+        }
+        else
+        {
+            checksum = ~sum(b, start, length) & 0xffff;
+            v.setChecksum(checksum);
+        }
+        return start;
+    }
+
+    /**
+        getBytes()
+        get this packet as a byte array
+        @return - the bytes of thsi packet
+    */
+    public byte[] getBytes()
+    {
+        int hlen = headerLen + (optionsLen() + 3) / 4 * 4;
+        byte[] bytes = new byte[hlen + dataLen];
+        writeHeader(ByteBuffer.wrap(bytes), hlen);
+        return bytes;
     }
 
     // simple setters/getters
+    public int connId(){return connId;}
+    public void setConnId(int id){connId = id;}
+    public void setAckNum(int a){ackNum = a;}
+    public void setWindow(int w){window = w;}
     public int seqNum(){return seqNum;}
     public int ackNum(){return ackNum;}
     public boolean ack(){return ack == 1;}
@@ -230,29 +585,149 @@ public class Packet
     public boolean syn(){return syn == 1;}
     public boolean fin(){return fin == 1;}
     public int window(){return window;}
-    public byte[] data(){return data;}
+    public int wscale(){return wscale;}
+    public void setWscale(int shift){wscale = shift;}
+    public boolean sackPermitted(){return sackPermitted;}
+    public void setSackPermitted(){sackPermitted = true;}
+    public int[] sack(){return sack;}
+    public void setSack(int[] edges){sack = edges;}
+    public boolean timestamps(){return timestamps;}
+    public int tsVal(){return tsVal;}
+    public int tsEcr(){return tsEcr;}
+    public void setTimestamps(int val, int ecr){timestamps = true; tsVal = val; tsEcr = ecr;}
+    public int altChecksum(){return altChecksum;}
+    public void setAltChecksum(int c){altChecksum = c;}
+    public int mss(){return mss;}
+    public void setMss(int m){mss = m;}
+    public int probe(){return probe;}
+    public void setProbe(int size){probe = size;}
+    public int treeHash(){return treeHash;}
+    public void setTreeHash(int shift){treeHash = shift;}
+    public boolean crc(){return crc;}
+    public void setCrc(boolean c){crc = c;}
+    public ByteBuffer buffer(){return buf;}
+    public int dataOff(){return dataOff;}
+    public long filePos(){return filePos;}
     public int dataLen(){return dataLen;}
     public void setReceiverAckd(){receiverAckd = true;}
     public boolean receiverAckd(){return receiverAckd;}
+    public void setSent(long now){sentAt = now; transmissions++;}
+    public long sentAt(){return sentAt;}
+    public int transmissions(){return transmissions;}
+    public void setStampDistinct(boolean d){stampDistinct = d;}
+    public boolean stampDistinct(){return stampDistinct;}
+    public void setLost(boolean l){lost = l;}
+    public boolean lost(){return lost;}
+    public void setDeliveryState(long d, long dt, long first, boolean limited)
+    {
+        delivered = d;
+        deliveredTime = dt;
+        firstSentTime = first;
+        appLimited = limited;
+    }
+    public long delivered(){return delivered;}
+    public long deliveredTime(){return deliveredTime;}
+    public long firstSentTime(){return firstSentTime;}
+    public boolean appLimited(){return appLimited;}
 
     /**
         checksum()
-        determine if this packet passes a checksum checksum
+        determine if this packet passes a checksum checksum. packets made
+        here rather than received always pass.
         @return true if uncorrupted packet, false if corrupted
     */
     public boolean checksum()
     {
-        int length = dataLen;
-        int i = 0;
+        return valid;
+    }
+
+    /**
+        crc32c()
+        get the CRC32C of a packet with its CRC field, bytes 16-19, taken
+        as zero. the JIT turns CRC32C into the CPU's own CRC instructions
+        where there are any.
+        @param b - the buffer the packet is in
+        @param at - where the packet starts
+        @param length - how many bytes the packet is, at least a header
+        @return the CRC
+    */
+    static int crc32c(ByteBuffer b, int at, int length)
+    {
+        CRC32C c = CRC.get();
+        c.reset();
+        if (b.hasArray())
+        {
+            byte[] a = b.array();
+            int off = b.arrayOffset() + at;
+            c.update(a, off, 16);
+            c.update(ZEROS, 0, 4);
+            c.update(a, off + 20, length - 20);
+        }
+        else
+        {
+            // update() reads from the position up to the limit, so both
+            // are moved for it and then put back
+            int pos = b.position();
+            int lim = b.limit();
+            b.limit(at + 16).position(at);
+            c.update(b);
+            c.update(ZEROS, 0, 4);
+            b.limit(at + length).position(at + 20);
+            c.update(b);
+            b.limit(lim).position(pos);
+        }
+        return (int)c.getValue();
+    }
+
+    /**
+        sum()
+        get the one's complement sum of a run of bytes taken as big endian
+        16 bit words. it is done 8 bytes at a time: the two 32 bit halves of
+        each long are added into a 64 bit total, which can't overflow for
+        anything smaller than 8GB, and the carries are folded back in at
+        the end. two longs go in each pass, the high halves into a total of
+        their own, so the adds don't all wait on each other. since 2^16 is
+        1 in one's complement arithmetic, folding 32 bit words gives the
+        same sum as adding 16 bit ones.
+        @param b - the buffer, big endian
+        @param off - where to start, from the start of the packet so the
+            words line up
+        @param len - how many bytes to sum
+        @return the sum, 16 bits
+    */
+    static int sum(ByteBuffer b, int off, int len)
+    {
         long sum = 0;
-        while (length > 0) {
-            sum += (data[i++]&0xff) << 8;
-            if ((--length)==0) break;
-            sum += (data[i++]&0xff);
-            --length;
+        int i = off;
+        int end = off + len;
+        long high = 0;
+        for (; i + 16 <= end; i += 16)
+        {
+            long w1 = (long)LONGS.get(b, i);
+            long w2 = (long)LONGS.get(b, i + 8);
+            high += (w1 >>> 32) + (w2 >>> 32);
+            sum += (w1 & 0xffffffffL) + (w2 & 0xffffffffL);
+        }
+        sum += high;
+        for (; i + 8 <= end; i += 8)
+        {
+            long w = (long)LONGS.get(b, i);
+            sum += (w >>> 32) + (w & 0xffffffffL);
+        }
+        // what is left is less than 8 bytes
+        for (; i + 2 <= end; i += 2)
+        {
+            sum += b.getShort(i) & 0xffff;
         }
-        long result = (~((sum & 0xFFFF)+(sum >> 16)))&0xFFFF;
-        return true;
+        if (i < end)
+        {
+            sum += (b.get(i) & 0xff) << 8;
+        }
+        while ((sum >>> 16) != 0)
+        {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int)sum;
     }
 
     /**
@@ -264,18 +739,35 @@ public class Packet
         // String bytes = "Bytes:\n:";
         // for (int j = 0; j < data.length)
         return
-            "seqNum    = "   + seqNum   +
+            "connId    = "   + connId   +
+            "\nseqNum    = " + seqNum   +
             "\nackNum    = " + ackNum   +
             "\nack       = " + ack      +
             "\nrst       = " + rst      +
             "\nsyn       = " + syn      +
             "\nfin       = " + fin      +
             "\nwindow    = " + window   +
-            "\nchecksum  = " + (checksum == null ? "" : NetworkServices.byteArrToString(checksum, 0, 2) )+
-            "\ndata      = " + (data == null ? "" : NetworkServices.byteArrToString(data, 0, 4) + " ..." )+
+            "\nwscale    = " + wscale   +
+            "\nsack      = " + (sack == null ? "" : Arrays.toString(sack)) +
+            "\ntimestamps= " + (timestamps ? tsVal + " " + tsEcr : "") +
+            "\ncrc       = " + crc      +
+            "\nmss       = " + mss      +
+            "\nchecksum  = " + Integer.toHexString(checksum) +
+            "\ndata      = " + (buf == null ? "" : dataPreview() + " ..." )+
             "\ndataLen   = " + dataLen  + "\n";
     }
 
+    // the first few bytes of the payload
+    private String dataPreview()
+    {
+        String s = "";
+        for (int i = 0; i < 4 && i < dataLen; i++)
+        {
+            s += NetworkServices.byteToString(buf.get(dataOff + i)) + " ";
+        }
+        return s;
+    }
+
     /**
         check if this packet is equal to another packet. this will only compare sequence numbers
         @return true if equal, false otherwise
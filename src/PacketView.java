@@ -0,0 +1,88 @@
+/**
+    PacketView.java
+    This class reads and writes the fixed header fields of an fcntcp packet
+    where it sits in a ByteBuffer, with absolute big endian gets and puts,
+    so a packet can be encoded or decoded without copying it anywhere
+    first. It holds no state of its own besides where the packet is, and
+    one view can be moved from packet to packet with wrap(). The buffer's
+    position and limit are never touched. See Packet for the layout.
+*/
+import java.nio.ByteBuffer;
+
+public class PacketView
+{
+    // flags in byte 13
+    public static final int FLAG_FIN = 0x01;
+    public static final int FLAG_SYN = 0x02;
+    public static final int FLAG_RST = 0x04;
+    public static final int FLAG_ACK = 0x10;
+    public static final int FLAG_CRC = 0x80;
+
+    private ByteBuffer buf;
+    private int base; // where the packet starts in buf
+
+    /**
+        wrap()
+        point this view at a packet
+        @param b - the buffer the packet is in, which must be big endian
+        @param at - where the packet starts
+        @return this view
+    */
+    public PacketView wrap(ByteBuffer b, int at)
+    {
+        buf = b;
+        base = at;
+        return this;
+    }
+
+    public ByteBuffer buffer(){return buf;}
+    public int base(){return base;}
+
+    public int connId(){return buf.getInt(base);}
+    public void setConnId(int id){buf.putInt(base, id);}
+    public int seqNum(){return buf.getInt(base + 4);}
+    public void setSeqNum(int s){buf.putInt(base + 4, s);}
+    public int ackNum(){return buf.getInt(base + 8);}
+    public void setAckNum(int a){buf.putInt(base + 8, a);}
+    public int flags(){return buf.get(base + 13) & 0xff;}
+    public void setFlags(int f){buf.put(base + 13, (byte)f);}
+    public int window(){return buf.getShort(base + 14) & 0xffff;}
+    public void setWindow(int w){buf.putShort(base + 14, (short)w);}
+    public int checksum(){return buf.getShort(base + 16) & 0xffff;}
+    public void setChecksum(int c){buf.putShort(base + 16, (short)c);}
+    public int crc(){return buf.getInt(base + 16);}
+    public void setCrc(int c){buf.putInt(base + 16, c);}
+
+    /**
+        headerLen()
+        get the length of the header in bytes, from the data offset in the
+        top of byte 12. a data offset under 5 is read as 5.
+    */
+    public int headerLen()
+    {
+        int hlen = ((buf.get(base + 12) >> 4) & 0x0f) * 4;
+        return hlen < Packet.headerLen ? Packet.headerLen : hlen;
+    }
+
+    /**
+        setHeaderLen()
+        set the data offset, clearing the reserved bits beside it
+        @param hlen - the length of the header in bytes, a multiple of 4
+    */
+    public void setHeaderLen(int hlen)
+    {
+        buf.put(base + 12, (byte)((hlen / 4) << 4));
+    }
+
+    /**
+        get()
+        get a byte of the packet, such as an option byte
+        @param i - the byte's place from the start of the packet
+    */
+    public int get(int i){return buf.get(base + i) & 0xff;}
+    public void put(int i, int b){buf.put(base + i, (byte)b);}
+    public int getShort(int i){return buf.getShort(base + i) & 0xffff;}
+    public void putShort(int i, int v){buf.putShort(base + i, (short)v);}
+    public int getInt(int i){return buf.getInt(base + i);}
+    public void putInt(int i, int v){buf.putInt(base + i, v);}
+}
@@ -0,0 +1,143 @@
+/**
+    RateSampler.java
+    This class measures how fast a connection is delivering data, the way
+    TCP's delivery rate estimation does (draft-cheng-iccrg-delivery-rate-
+    estimation). Each packet is stamped when it is sent with how much had
+    been delivered so far and when; when it is ack'd or SACK'd, the data
+    delivered between the two moments over the time between them is a rate
+    sample. The send and ack intervals are both measured and the longer one
+    is used, so neither a burst of sends nor a burst of acks makes the rate
+    look faster than the path.
+*/
+
+public class RateSampler
+{
+    private long delivered = 0; // total bytes delivered
+    private long deliveredTime = 0; // when delivered last grew, in ns
+    private long firstSentTime = 0; // send time of the packet that started the current interval, in ns
+    private long appLimited = 0; // delivered count the sender is app limited until, 0 if it isn't
+
+    // the sample being built from the current ack
+    private Sample rs = new Sample();
+
+    /**
+        Sample
+        one delivery rate measurement
+    */
+    public static class Sample
+    {
+        private long priorDelivered = 0; // delivered when the sampled packet was sent
+        private long sentAt = 0; // when the sampled packet was sent, in ns
+        private long sendElapsed = 0; // ns between the interval's first and last sends
+        private long ackElapsed = 0; // ns between the interval's first and last deliveries
+        private long interval = 0; // the longer of the two, in ns
+        private long delivered = 0; // bytes delivered over the interval
+        private long totalDelivered = 0; // bytes delivered in all
+        private int newlyDelivered = 0; // bytes this ack delivered
+        private boolean appLimited = false;
+        private boolean valid = false;
+
+        /**
+            rate()
+            get the delivery rate in bytes per second, or 0 if the sample
+            isn't valid
+        */
+        public double rate()
+        {
+            return valid ? delivered * 1e9 / interval : 0;
+        }
+
+        public long priorDelivered(){return priorDelivered;}
+        public long totalDelivered(){return totalDelivered;}
+        public int newlyDelivered(){return newlyDelivered;}
+        public boolean appLimited(){return appLimited;}
+        public boolean valid(){return valid;}
+    }
+
+    /**
+        onSend()
+        stamp a packet as it is sent
+        @param p - the packet
+        @param inFlight - bytes in flight before it is sent
+        @param now - the current time in ns
+    */
+    public void onSend(Packet p, int inFlight, long now)
+    {
+        if (inFlight <= 0)
+        {
+            // nothing in flight, so the next interval starts now
+            firstSentTime = now;
+            deliveredTime = now;
+        }
+        p.setDeliveryState(delivered, deliveredTime, firstSentTime, appLimited != 0);
+    }
+
+    /**
+        onDelivered()
+        count a packet the server has newly received, by cumulative ack or
+        SACK. of the packets an ack delivers, the last one sent is the one
+        sampled.
+        @param p - the packet
+        @param now - the current time in ns
+    */
+    public void onDelivered(Packet p, long now)
+    {
+        delivered += p.dataLen();
+        deliveredTime = now;
+        rs.newlyDelivered += p.dataLen();
+        if (!rs.valid || p.sentAt() - rs.sentAt > 0)
+        {
+            rs.priorDelivered = p.delivered();
+            rs.sentAt = p.sentAt();
+            rs.appLimited = p.appLimited();
+            rs.sendElapsed = p.sentAt() - p.firstSentTime();
+            rs.ackElapsed = deliveredTime - p.deliveredTime();
+            rs.valid = true;
+            // the next interval starts from this packet's send
+            firstSentTime = p.sentAt();
+        }
+    }
+
+    /**
+        sample()
+        finish the sample for the current ack and start the next
+        @param minRtt - the smallest round trip time seen, in ns. shorter
+            intervals are left out, since they come from ack compression.
+        @return the sample; not valid if this ack delivered nothing new
+    */
+    public Sample sample(long minRtt)
+    {
+        Sample s = rs;
+        rs = new Sample();
+        if (appLimited != 0 && delivered > appLimited)
+        {
+            appLimited = 0;
+        }
+        s.totalDelivered = delivered;
+        if (s.valid)
+        {
+            s.delivered = delivered - s.priorDelivered;
+            s.interval = Math.max(s.sendElapsed, s.ackElapsed);
+            s.valid = s.interval > 0 && s.interval >= minRtt;
+        }
+        return s;
+    }
+
+    /**
+        onAppLimited()
+        note that the sender has nothing more to send, so rate samples until
+        what is in flight now is delivered show the sender's pace, not the
+        path's
+        @param inFlight - bytes in flight
+    */
+    public void onAppLimited(int inFlight)
+    {
+        appLimited = Math.max(delivered + inFlight, 1);
+    }
+
+    /**
+        delivered()
+        get the total bytes delivered
+    */
+    public long delivered(){return delivered;}
+}
@@ -0,0 +1,169 @@
+/**
+    Reno.java
+    This class is the client's original congestion control: slow start up
+    to the threshold, then one segment more per window of acks. A loss
+    halves the window and goes to fast recovery, where the client brings
+    the flight down to the new window as acks come in. A timeout halves the
+    window again.
+*/
+
+public class Reno implements CongestionController
+{
+    private static final int SLOW_START = 1;
+    private static final int CONG_AVOID = 2;
+    private static final int FAST_REC =   3;
+    private int congestionState = SLOW_START;
+
+    private int mss = Packet.MSS; // the segment size
+    private int cwnd = 2 * Packet.MSS;
+    private int ssthresh = Integer.MAX_VALUE; // slow start threshold, set by connected()
+
+    // the state before the last timeout, in case it was spurious
+    private int priorState = SLOW_START;
+    private int priorCwnd = 0;
+    private int priorSsthresh = 0;
+
+    /**
+        connected()
+        start with the largest window the server can advertise as the
+        threshold, so slow start runs until the first loss
+        @param maxWindow - the largest window the server can advertise
+        @param mss - the segment size
+    */
+    public void connected(int maxWindow, int mss)
+    {
+        this.mss = mss;
+        cwnd = 2 * mss;
+        ssthresh = maxWindow;
+    }
+
+    /**
+        onAck()
+        grow the window by the bytes ack'd rather than the number of acks
+        (RFC 3465), so a server that holds back acks or covers a burst with
+        one ack doesn't slow it down. the ack that ends fast recovery starts
+        again from the threshold.
+        @param acked - how many new bytes the ack covered
+    */
+    public void onAck(int acked)
+    {
+        if (congestionState == FAST_REC)
+        {
+            congestionState = CONG_AVOID;
+            cwnd = ssthresh;
+        }
+        if (congestionState == SLOW_START)
+        {
+            cwnd += acked;
+            if (cwnd > ssthresh)
+            {
+                congestionState = CONG_AVOID;
+            }
+        }
+        else
+        {
+            cwnd = cwnd + (int)(mss * (1.0*acked/cwnd));
+        }
+    }
+
+    /**
+        onLoss()
+        halve the window and go to fast recovery
+    */
+    public void onLoss(int inFlight, int acked)
+    {
+        congestionState = FAST_REC;
+        halfCWND();
+        ssthresh = cwnd;
+    }
+
+    /**
+        onTimeout()
+        halve the window. out of slow start, go back to it.
+    */
+    public void onTimeout()
+    {
+        priorState = congestionState;
+        priorCwnd = cwnd;
+        priorSsthresh = ssthresh;
+        halfCWND();
+        ssthresh = cwnd;
+        if (congestionState != SLOW_START)
+        {
+            congestionState = SLOW_START;
+            cwnd = ssthresh + 3 * mss;
+        }
+    }
+
+    /**
+        onUndo()
+        go back to the state from before the last timeout, keeping any
+        growth since
+    */
+    public void onUndo()
+    {
+        congestionState = priorState;
+        cwnd = Math.max(cwnd, priorCwnd);
+        ssthresh = Math.max(ssthresh, priorSsthresh);
+    }
+
+    /**
+        onRttSample()
+        Reno doesn't use the round trip time
+    */
+    public void onRttSample(double rtt){}
+
+    /**
+        halfCWND()
+        half the size of the congestion window.
+    */
+    private void halfCWND()
+    {
+        if (cwnd <= 2 * mss)
+        {
+            return;
+        }
+        if (cwnd % mss != 0)
+        {
+            cwnd -= mss;
+        }
+        cwnd /= 2;
+    }
+
+    /**
+        onRateSample()
+        Reno doesn't use delivery rates
+    */
+    public void onRateSample(RateSampler.Sample rs, int inFlight){}
+
+    /**
+        onDelaySample()
+        Reno doesn't use one way delays
+    */
+    public void onDelaySample(int delay){}
+
+    /**
+        pacingRate()
+        Reno sends as much as the window allows at once
+    */
+    public long pacingRate(){return 0;}
+
+    public boolean usesPrr(){return true;}
+    public boolean inRecovery(){return congestionState == FAST_REC;}
+    public int cwnd(){return cwnd;}
+    public int ssthresh(){return ssthresh;}
+
+    /**
+        state()
+        get the name of the congestion state
+    */
+    public String state()
+    {
+        if (congestionState == SLOW_START)
+            return "Slow start";
+        else if (congestionState == CONG_AVOID)
+            return "Congestion avoidance";
+        else
+            return "Fast recovery";
+    }
+}
@@ -0,0 +1,341 @@
+/**
+    ReorderBuffer.java
+    This class holds packets that arrived ahead of the next sequence number
+    the server expects. It is a fixed ring of slots, one per segment, so a
+    packet's slot is found from (seq - nextSeq) / segment size. A bitmap of
+    occupied slots makes duplicate checks constant time, and contiguous
+    packets are drained from the head in order. The ring only covers the
+    advertised window, so its memory is bounded by the window.
+
+    When the server stores what it receives to disk the payload is already
+    at its place in the file, so a packet can be marked as arrived without
+    being held. The buffer then only keeps each segment's length, to build
+    SACK blocks and to move the head on.
+*/
+import java.util.Arrays;
+
+public class ReorderBuffer
+{
+    private Packet[] slots; // null for a segment that was only marked
+    private int[] lengths; // the payload length of each occupied slot
+    private long[] occupied; // one bit per slot
+    private int head = 0; // the slot of the next expected sequence number
+    private int count = 0; // how many slots are occupied
+    private int segmentSize;
+
+    /**
+        ReorderBuffer()
+        Construct a new reorder buffer
+        @param window - the number of bytes the buffer must cover
+        @param segment - the size of a full segment in bytes
+    */
+    public ReorderBuffer(int window, int segment)
+    {
+        segmentSize = segment;
+        int capacity = window / segment;
+        if (capacity < 1)
+        {
+            capacity = 1;
+        }
+        slots = new Packet[capacity];
+        lengths = new int[capacity];
+        occupied = new long[(capacity + 63) / 64];
+    }
+
+    /**
+        add()
+        buffer a packet.
+        @param p - the packet
+        @param nextSeq - the next sequence number the server expects
+        @return true if the packet was stored, false if it is a duplicate,
+            is behind nextSeq, is not on a segment boundary, or is beyond
+            the window
+    */
+    public boolean add(Packet p, int nextSeq)
+    {
+        int slot = place(p, nextSeq);
+        if (slot < 0)
+        {
+            return false;
+        }
+        slots[slot] = p;
+        return true;
+    }
+
+    /**
+        mark()
+        note that a packet arrived without keeping it, for a payload that
+        has already been stored elsewhere
+        @param p - the packet
+        @param nextSeq - the next sequence number the server expects
+        @return true if the packet was marked, false for the same reasons
+            as add()
+    */
+    public boolean mark(Packet p, int nextSeq)
+    {
+        return place(p, nextSeq) >= 0;
+    }
+
+    /**
+        place()
+        find and occupy the slot for a packet
+        @param p - the packet
+        @param nextSeq - the next sequence number the server expects
+        @return the slot, or -1 if the packet can't be taken
+    */
+    private int place(Packet p, int nextSeq)
+    {
+        int offset = p.seqNum() - nextSeq;
+        if (offset < 0 || offset % segmentSize != 0)
+        {
+            return -1;
+        }
+        int index = offset / segmentSize;
+        if (index >= slots.length)
+        {
+            return -1;
+        }
+        int slot = slot(index);
+        if (isSet(slot))
+        {
+            return -1;
+        }
+        lengths[slot] = p.dataLen();
+        occupied[slot >> 6] |= 1L << (slot & 63);
+        count++;
+        return slot;
+    }
+
+    /**
+        poll()
+        take the packet for the next expected sequence number, if it has
+        arrived. the head moves on to the following segment.
+        @return the packet, or null if it has not arrived or was only marked
+    */
+    public Packet poll()
+    {
+        if (!isSet(head))
+        {
+            return null;
+        }
+        Packet p = slots[head];
+        advance();
+        return p;
+    }
+
+    /**
+        advance()
+        move the head on past the segment for the next expected sequence
+        number, if it has arrived
+        @return the segment's length, or -1 if it has not arrived
+    */
+    public int advance()
+    {
+        if (!isSet(head))
+        {
+            return -1;
+        }
+        int len = lengths[head];
+        slots[head] = null;
+        occupied[head >> 6] &= ~(1L << (head & 63));
+        count--;
+        head = (head + 1) % slots.length;
+        return len;
+    }
+
+    /**
+        contains()
+        determine if a packet for a sequence number is already buffered
+        @param seq - the sequence number
+        @param nextSeq - the next sequence number the server expects
+    */
+    public boolean contains(int seq, int nextSeq)
+    {
+        int offset = seq - nextSeq;
+        if (offset < 0 || offset % segmentSize != 0 || offset / segmentSize >= slots.length)
+        {
+            return false;
+        }
+        return isSet(slot(offset / segmentSize));
+    }
+
+    /**
+        accepts()
+        determine if add() would take a packet for a sequence number, so
+        the server only copies the payload of one that will be kept
+        @param seq - the sequence number
+        @param nextSeq - the next sequence number the server expects
+    */
+    public boolean accepts(int seq, int nextSeq)
+    {
+        int offset = seq - nextSeq;
+        if (offset < 0 || offset % segmentSize != 0 || offset / segmentSize >= slots.length)
+        {
+            return false;
+        }
+        return !isSet(slot(offset / segmentSize));
+    }
+
+    /**
+        sackBlocks()
+        describe the buffered packets as SACK blocks, one block per run of
+        contiguous packets. the block holding the most recently received
+        packet comes first and the rest follow in order, as in RFC 2018.
+        @param nextSeq - the next sequence number the server expects
+        @param recent - the sequence number of the most recent packet
+        @param max - the most blocks to give
+        @return the block edges, left and right in pairs, or null if
+            nothing is buffered
+    */
+    public int[] sackBlocks(int nextSeq, int recent, int max)
+    {
+        if (count == 0 || max <= 0)
+        {
+            return null;
+        }
+        int[] edges = new int[2 * max];
+        int blocks = 0;
+        int recentOffset = recent - nextSeq;
+        // the block with the recent packet, if it was buffered
+        if (recentOffset > 0 && contains(recent, nextSeq))
+        {
+            int index = recentOffset / segmentSize;
+            int start = index;
+            while (start > 0 && isSet(slot(start - 1)))
+            {
+                start--;
+            }
+            int end = nextClear(index);
+            edges[blocks*2] = nextSeq + start * segmentSize;
+            edges[blocks*2+1] = rightEdge(nextSeq, end - 1);
+            blocks++;
+        }
+        int index = nextSet(0);
+        while (index >= 0 && blocks < max)
+        {
+            int end = nextClear(index);
+            int left = nextSeq + index * segmentSize;
+            if (blocks == 0 || left != edges[0])
+            {
+                edges[blocks*2] = left;
+                edges[blocks*2+1] = rightEdge(nextSeq, end - 1);
+                blocks++;
+            }
+            index = end < slots.length ? nextSet(end) : -1;
+        }
+        return Arrays.copyOf(edges, 2 * blocks);
+    }
+
+    // the sequence number just past the packet index-many segments past the head
+    private int rightEdge(int nextSeq, int index)
+    {
+        return nextSeq + index * segmentSize + lengths[slot(index)];
+    }
+
+    /**
+        nextSet()
+        find the first occupied slot at or after an index, skipping a whole
+        word of the bitmap at a time where it can
+        @param index - segments past the head to start from
+        @return segments past the head of the occupied slot, or -1 if none
+    */
+    private int nextSet(int index)
+    {
+        while (index < slots.length)
+        {
+            int slot = slot(index);
+            int run = run(index, slot);
+            long word = occupied[slot >> 6] >>> (slot & 63);
+            int set = Long.numberOfTrailingZeros(word);
+            if (set < run)
+            {
+                return index + set;
+            }
+            index += run;
+        }
+        return -1;
+    }
+
+    /**
+        nextClear()
+        find the first empty slot at or after an index
+        @param index - segments past the head to start from
+        @return segments past the head of the empty slot, or the capacity if
+            every slot from there on is occupied
+    */
+    private int nextClear(int index)
+    {
+        while (index < slots.length)
+        {
+            int slot = slot(index);
+            int run = run(index, slot);
+            long word = ~occupied[slot >> 6] >>> (slot & 63);
+            int free = Long.numberOfTrailingZeros(word);
+            if (free < run)
+            {
+                return index + free;
+            }
+            index += run;
+        }
+        return slots.length;
+    }
+
+    /**
+        run()
+        get how many slots from an index can be read from one word of the
+        bitmap: up to the end of the word, the end of the array, or the end
+        of the ring, whichever comes first
+        @param index - segments past the head
+        @param slot - the slot of that index
+    */
+    private int run(int index, int slot)
+    {
+        int run = 64 - (slot & 63);
+        if (slots.length - slot < run) { run = slots.length - slot; }
+        if (slots.length - index < run) { run = slots.length - index; }
+        return run;
+    }
+
+    /**
+        clear()
+        drop every buffered packet
+    */
+    public void clear()
+    {
+        for (int i = 0; i < slots.length; i++)
+        {
+            slots[i] = null;
+        }
+        for (int i = 0; i < occupied.length; i++)
+        {
+            occupied[i] = 0;
+        }
+        head = 0;
+        count = 0;
+    }
+
+    /**
+        size()
+        get how many packets are buffered
+    */
+    public int size(){return count;}
+
+    /**
+        capacity()
+        get how many segments the buffer can hold
+    */
+    public int capacity(){return slots.length;}
+
+    // the slot index-many segments past the head
+    private int slot(int index)
+    {
+        int slot = head + index;
+        return slot >= slots.length ? slot - slots.length : slot;
+    }
+
+    // is a slot occupied
+    private boolean isSet(int slot)
+    {
+        return (occupied[slot >> 6] & (1L << (slot & 63))) != 0;
+    }
+}
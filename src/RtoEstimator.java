@@ -0,0 +1,136 @@
+/**
+    RtoEstimator.java
+    This class works out the retransmission timeout of a connection from
+    round trip time samples, the way TCP does (RFC 6298): a smoothed RTT and
+    RTT variance in the style of Jacobson/Karels, exponential backoff after
+    a timeout, and clamps on the result. The caller is responsible for
+    Karn's rule, only giving samples from packets that were sent once.
+
+    As in Linux, MIN_RTO is a floor on the variance term rather than on the
+    whole timeout, so the timeout is always at least MIN_RTO past the
+    smoothed rtt. On a long path with steady round trips the variance is
+    tiny, and without that margin an ack the server holds back for a few
+    tens of ms would cause a spurious timeout.
+*/
+
+public class RtoEstimator
+{
+    public static final int INITIAL_RTO = 1000; // ms, before any sample
+    public static final int MIN_RTO = 200; // ms
+    public static final int MAX_RTO = 60 * 1000; // ms
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private static final int MAX_BACKOFF = 16;
+
+    private double srtt = -1; // smoothed round trip time in ms, -1 before any sample
+    private double rttvar = 0; // round trip time variance in ms
+    private int rto = INITIAL_RTO; // the timeout before backoff, in ms
+    private int backoff = 0; // how many times the timeout has doubled
+    private int fixed = -1; // a timeout that overrides the estimate, -1 for none
+    private int granularity; // the resolution of the timer in ms
+
+    /**
+        RtoEstimator()
+        Construct a new estimator
+        @param g - the resolution of the retransmission timer in ms
+    */
+    public RtoEstimator(int g)
+    {
+        granularity = g;
+    }
+
+    /**
+        setFixed()
+        use a fixed timeout in place of the estimate. backoff still applies.
+        @param t - the timeout in ms, or -1 to use the estimate
+    */
+    public synchronized void setFixed(int t)
+    {
+        fixed = t;
+    }
+
+    /**
+        sample()
+        update the estimate with a round trip time measurement. this also
+        undoes any backoff, since the path is evidently working again.
+        @param rtt - the round trip time in ms
+    */
+    public synchronized void sample(double rtt)
+    {
+        if (rtt < 0)
+        {
+            return;
+        }
+        if (srtt < 0)
+        {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        }
+        else
+        {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        double margin = Math.max(granularity, K * rttvar);
+        rto = clamp((int)Math.ceil(srtt + Math.max(MIN_RTO, margin)));
+        backoff = 0;
+    }
+
+    /**
+        backoff()
+        double the timeout after a retransmission timer fires
+    */
+    public synchronized void backoff()
+    {
+        if (backoff < MAX_BACKOFF && ((long)base() << backoff) < MAX_RTO)
+        {
+            backoff++;
+        }
+    }
+
+    /**
+        get()
+        get the current retransmission timeout
+        @return the timeout in ms
+    */
+    public synchronized int get()
+    {
+        long t = (long)base() << backoff;
+        return t > MAX_RTO ? MAX_RTO : (int)t;
+    }
+
+    /**
+        srtt()
+        get the smoothed round trip time
+        @return the smoothed rtt in ms, or -1 if there has been no sample
+    */
+    public synchronized double srtt()
+    {
+        return srtt;
+    }
+
+    /**
+        rttvar()
+        get the round trip time variance in ms
+    */
+    public synchronized double rttvar()
+    {
+        return rttvar;
+    }
+
+    // the timeout before backoff
+    private int base()
+    {
+        return fixed >= 0 ? fixed : rto;
+    }
+
+    // keep a timeout inside the allowed range
+    private static int clamp(int t)
+    {
+        if (t < MIN_RTO) { return MIN_RTO; }
+        if (t > MAX_RTO) { return MAX_RTO; }
+        return t;
+    }
+}
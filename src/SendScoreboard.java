@@ -0,0 +1,127 @@
+/**
+    SendScoreboard.java
+    This class keeps the packets a client has sent but that have not been
+    ack'd yet. It is a ring of slots, one per segment, starting at the
+    oldest unack'd sequence number, so a packet is found from
+    (seq - oldest) / segment size without a search. A cumulative ack moves
+    the head past the packets it covers. The ring doubles in size when the
+    window grows past it.
+*/
+
+public class SendScoreboard
+{
+    private Packet[] slots;
+    private int head = 0; // the slot of the oldest unack'd packet
+    private int headSeq = 0; // the sequence number of the head slot
+    private int count = 0; // the number of slots from the head to the newest packet
+    private int segmentSize;
+
+    /**
+        SendScoreboard()
+        Construct a new scoreboard
+        @param capacity - the number of segments to make room for at first
+        @param segment - the size of a full segment in bytes
+    */
+    public SendScoreboard(int capacity, int segment)
+    {
+        segmentSize = segment;
+        slots = new Packet[capacity < 1 ? 1 : capacity];
+    }
+
+    /**
+        add()
+        record a packet that was just sent for the first time
+        @param p - the packet
+        @return false if the packet is older than the oldest unack'd one or
+            is not on a segment boundary
+    */
+    public boolean add(Packet p)
+    {
+        if (count == 0)
+        {
+            headSeq = p.seqNum();
+        }
+        int offset = p.seqNum() - headSeq;
+        if (offset < 0 || offset % segmentSize != 0)
+        {
+            return false;
+        }
+        int index = offset / segmentSize;
+        while (index >= slots.length)
+        {
+            grow();
+        }
+        slots[slot(index)] = p;
+        if (index >= count)
+        {
+            count = index + 1;
+        }
+        return true;
+    }
+
+    /**
+        get()
+        find an unack'd packet by its sequence number
+        @param seq - the sequence number
+        @return the packet, or null if it is not in flight
+    */
+    public Packet get(int seq)
+    {
+        int offset = seq - headSeq;
+        if (offset < 0 || offset % segmentSize != 0 || offset / segmentSize >= count)
+        {
+            return null;
+        }
+        return slots[slot(offset / segmentSize)];
+    }
+
+    /**
+        pollAcked()
+        take the oldest packet if a cumulative ack covers it. call this
+        until it returns null to clear out everything an ack covers.
+        @param ackNum - the ack number received
+        @return the ack'd packet, or null if the oldest one is not ack'd
+    */
+    public Packet pollAcked(int ackNum)
+    {
+        if (count == 0)
+        {
+            return null;
+        }
+        Packet p = slots[head];
+        if (p == null || ackNum - p.seqNum() <= 0)
+        {
+            return null;
+        }
+        slots[head] = null;
+        head = (head + 1) % slots.length;
+        headSeq += segmentSize;
+        count--;
+        return p;
+    }
+
+    /**
+        size()
+        get the number of segments from the oldest unack'd packet to the newest
+    */
+    public int size(){return count;}
+
+    // the slot index-many segments past the head
+    private int slot(int index)
+    {
+        int slot = head + index;
+        return slot >= slots.length ? slot - slots.length : slot;
+    }
+
+    // double the ring, moving the head back to slot 0
+    private void grow()
+    {
+        Packet[] bigger = new Packet[slots.length * 2];
+        for (int i = 0; i < count; i++)
+        {
+            bigger[i] = slots[slot(i)];
+        }
+        slots = bigger;
+        head = 0;
+    }
+}
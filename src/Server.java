@@ -2,42 +2,57 @@
     Server.java
     @author Jason Tu <jwt8264@rit.edu>
 
-    This class provides the server side functionality of fcntcp
+    This class provides the server side functionality of fcntcp. A single
+    thread serves every client: one non-blocking channel is read through a
+    selector, and each datagram is handed to the Session of the address it
+    came from.
 */
 import java.io.IOException;
 
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Random;
-import java.util.LinkedList;
-import java.util.Collections;
-import java.util.Comparator;
 
 public class Server
 {
     private int port = -1;
-    private DatagramSocket socket;
-
-    private InetAddress clientAddr;
-    private int clientPort = -1;
-    private int timeout = 1000;
-
-    private int ackNum = 0;
-    private int nextSeq = 0; // next sequence number we expect
-    private int seqNum = 0;
+    private DatagramChannel channel;
+    private Selector selector;
+    private BufferPool pool; // buffers to receive into
+    private HashMap<Integer, BufferPool> segmentPools = new HashMap<Integer, BufferPool>(); // by segment size, for held payloads
+    private int poolSize = 8192; // the most free buffers the pool keeps
+    private boolean directBuffers = false; // receive into direct buffers
+    private int maxMss = Packet.MSS; // the largest segment a client may use
+    private String saveDir = null; // where received files are stored, null to only sum them
+    private ByteBuffer sendBuf; // every packet sent is written here
+    private Packet received = new Packet(0); // every datagram is decoded into this
+    private DigestStage digest = new DigestStage(); // sums received files off the receive loop
 
     private int window = 5000 * 1000;
+    private int recvBufferSize = 4 * 1024 * 1024; // socket buffer shared by all clients
+    private long sweepInterval = 1000; // how often to look for dead sessions, in ms
+    private int ackEvery = 2; // ack at least every this many full packets
+    private int ackDelay = 40; // longest an ack may be held back, in ms
 
     private double chanceToDropAcks = 0.0; // with debug turned on , the chance to drop acks
+    private Random rand = new Random();
 
-    private MD5Summer md5 = new MD5Summer();
-    LinkedList<Packet> buffer = new LinkedList<Packet>();
+    private HashMap<SocketAddress, Session> sessions = new HashMap<SocketAddress, Session>();
+    private ArrayList<Session> pendingAcks = new ArrayList<Session>(); // sessions that owe an ack, each once
+    private int nextConnId = 1;
 
     /**
-        Server 
+        Server
         constructor for a new server object
     */
     public Server(int p)
@@ -47,235 +62,361 @@ public class Server
 
     /**
         start()
-        the main function of the server. this will start listening on the 
-        port and await connections
+        the main function of the server. this will start listening on the
+        port and serve connections until the process is killed
     */
     public void start() throws IOException
     {
-        socket = new DatagramSocket(port);
-        DatagramPacket datagram;
-        Packet packet;
-        int actualLen = -1;
-        byte[] data;
-        byte[] packetContents;
-        byte[] packetBytes;
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, recvBufferSize);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        // a datagram is received before we know whose it is, so every
+        // buffer has room for the largest segment any client may use
+        pool = new BufferPool(maxMss + Packet.maxHeaderLen, poolSize, directBuffers);
+        digest.start();
+        sendBuf = pool.get();
+        ByteBuffer buf = pool.get();
+        long lastSweep = System.currentTimeMillis();
         printv("Server started! ");
-        while(true)
+        while (true)
         {
-        
-            boolean connected = false;
-            while (!connected)
+            // the channel is the only key, and receive() on it never
+            // blocks, so select only has to wait. handing it an action
+            // keeps it from adding the key to the selected set every time
+            selector.select(key -> {}, selectTimeout(System.currentTimeMillis()));
+            // drain everything that is waiting before going back to select
+            SocketAddress addr;
+            while ((addr = channel.receive(buf)) != null)
             {
-                connected = handshake();
-            }
-            printv("Hands shaken! Waiting for data");
-            boolean done = false;
-            while (!done)
-            {
-                data = new byte[Packet.MTU];
-                datagram = new DatagramPacket(data, data.length);
-                socket.receive(datagram);
-                actualLen  = datagram.getLength();
-                packetContents = null;
-                if (Packet.MTU != actualLen)
-                {
-                    // packet is smaller than max size, trim excess
-                    packetBytes = datagram.getData();
-                    packetContents = new byte[actualLen];
-                    for (int i = 0; i < actualLen; i++)
-                    {
-                        packetContents[i] = packetBytes[i];
-                    }
-                }
-                else
-                {
-                    packetContents = datagram.getData();
-                }
-                // TODO move setting client fields to the handshake
-                clientAddr = datagram.getAddress();
-                clientPort = datagram.getPort();
-                packet = new Packet(packetContents);
-                printv("Received packet "+packet.seqNum());
-                if (packet.checksum() && packet.fin())
+                int length = buf.position();
+                if (length < Packet.headerLen)
                 {
-                    while (!done)
-                    {
-                        done = finshake(packet);
-                    }
-                    connected = false;
-                    ackNum = 0;
-                    nextSeq = 0; 
-                    seqNum = 0;
-                    System.out.println(md5.getResult());
+                    buf.clear();
                     continue;
                 }
-                if (packet.checksum() && packet.seqNum() == nextSeq)
+                // the packet is decoded where it is, into the same Packet
+                // every time, and its payload stays there, so if a session
+                // kept it the next one needs another buffer
+                if (dispatch(addr, received.read(buf, 0, length)))
                 {
-                    nextSeq += packet.dataLen();
-                    md5.next(packet.data(), 0, packet.dataLen());
-                    processBuffer();
-
+                    buf = pool.get();
                 }
-                else if (packet.checksum() && packet.seqNum() > nextSeq && !buffer.contains(packet))
+                else
                 {
-                    buffer.add(packet);
+                    buf.clear();
                 }
-                sendAck(nextSeq);
+            }
+            long now = System.currentTimeMillis();
+            flushAcks(now);
+            if (now - lastSweep >= sweepInterval)
+            {
+                sweep(now);
+                lastSweep = now;
             }
         }
     }
 
     /**
-        processBuffer()
-        process the packets that have been buffered, if possible. 
+        setAckPolicy()
+        choose how often acks are sent
+        @param every - ack at least every this many full packets
+        @param delay - the longest an ack may be held back, in ms
     */
-    private synchronized void processBuffer()
+    public void setAckPolicy(int every, int delay)
     {
-        if (buffer.size() == 0)
+        ackEvery = every < 1 ? 1 : every;
+        ackDelay = delay < 0 ? 0 : delay;
+    }
+
+    /**
+        setBufferPool()
+        choose how receive buffers are kept. call before start().
+        @param max - the most free buffers to keep for reuse, 0 for none
+        @param direct - true for direct buffers outside the heap
+    */
+    public void setBufferPool(int max, boolean direct)
+    {
+        poolSize = max;
+        directBuffers = direct;
+    }
+
+    /**
+        setMaxMss()
+        choose the largest segment a client may agree to use. call before
+        start().
+        @param m - the segment size in bytes
+    */
+    public void setMaxMss(int m)
+    {
+        maxMss = Math.max(1, Math.min(m, Packet.MAX_MSS));
+    }
+
+    /**
+        setSaveDir()
+        choose to store each received file, as conn-<id> in a directory.
+        call before start().
+        @param dir - the directory, or null to only sum files
+    */
+    public void setSaveDir(String dir)
+    {
+        saveDir = dir;
+    }
+
+    /**
+        saveDir()
+        get the directory received files are stored in, or null if they are
+        only summed
+    */
+    public String saveDir(){return saveDir;}
+
+    /**
+        digest()
+        get the stage that sums received files
+    */
+    public DigestStage digest(){return digest;}
+
+    /**
+        maxMss()
+        get the largest segment a client may agree to use
+    */
+    public int maxMss(){return maxMss;}
+
+    /**
+        recycle()
+        give a packet's buffer back to the pool once a session is done with
+        it. the packet's payload must not be used after this.
+        @param p - a packet the server received
+    */
+    public void recycle(Packet p)
+    {
+        if (p == received)
         {
+            return; // its buffer is still the one being received into
+        }
+        ByteBuffer b = p.buffer();
+        // most buffers are receive buffers, and looking those up by size
+        // would box the size every time
+        if (b.capacity() == maxMss + Packet.maxHeaderLen)
+        {
+            pool.put(b);
             return;
         }
-        Collections.sort(buffer, new Comparator<Packet>() {
-            @Override
-            public int compare(Packet a, Packet b) {
-                return a.seqNum() - b.seqNum();
-            }
-        });
-        LinkedList<Packet> toRemove = new LinkedList<Packet>();
-        for (Packet p : buffer)
+        BufferPool small = segmentPools.get(b.capacity());
+        (small != null ? small : pool).put(b);
+    }
+
+    /**
+        keep()
+        get a packet a session can hold on to. p is decoded over by the next
+        datagram, so the session gets a packet of its own, which refers to
+        p's payload where it is. every receive buffer is sized for the
+        largest segment any client may use, though, so when a client agreed
+        on much less, the payload is copied into a buffer sized for its
+        segments instead, and the reorder buffer's memory stays in
+        proportion to the window.
+        @param p - a packet the server received
+        @param mss - the segment size the session agreed on
+        @return a packet for the payload, which goes back with recycle()
+    */
+    public Packet keep(Packet p, int mss)
+    {
+        if (maxMss + Packet.maxHeaderLen <= 2 * mss)
         {
-            if (p.seqNum() == nextSeq)
+            return new Packet(p.seqNum(), p.buffer(), p.dataOff(), p.dataLen());
+        }
+        BufferPool small = segmentPools.get(mss);
+        if (small == null)
+        {
+            small = new BufferPool(mss, poolSize, directBuffers);
+            segmentPools.put(mss, small);
+        }
+        ByteBuffer b = small.get();
+        b.put(0, p.buffer(), p.dataOff(), p.dataLen());
+        return new Packet(p.seqNum(), b, 0, p.dataLen());
+    }
+
+    /**
+        ackPending()
+        note that a session owes its client an ack
+        @param s - the session
+    */
+    public void ackPending(Session s)
+    {
+        if (!s.ackListed())
+        {
+            s.setAckListed(true);
+            pendingAcks.add(s);
+        }
+    }
+
+    /**
+        flushAcks()
+        send every ack that is owed and due
+        @param now - the current time in ms
+    */
+    private void flushAcks(long now) throws IOException
+    {
+        // the sessions still owing one are moved down over those that are
+        // done, in place, so a flush allocates nothing
+        int left = 0;
+        for (int i = 0; i < pendingAcks.size(); i++)
+        {
+            Session s = pendingAcks.get(i);
+            if (s.flushAck(now))
             {
-                nextSeq += p.dataLen();
-                md5.next(p.data(), 0, p.dataLen());
-                toRemove.add(p);
+                s.setAckListed(false);
             }
             else
             {
-                break;
+                pendingAcks.set(left++, s);
             }
         }
-        for (Packet p : toRemove)
+        while (pendingAcks.size() > left)
         {
-            buffer.remove(p);
+            pendingAcks.remove(pendingAcks.size() - 1);
         }
     }
 
     /**
-        sendAck()
-        send an ack to the client.
-        @param seqNum - the sequence number we are ack'ing
+        selectTimeout()
+        get how long to wait for packets before there is other work to do
+        @param now - the current time in ms
+        @return the time to wait in ms, at least 1
+    */
+    private long selectTimeout(long now)
+    {
+        long wait = sweepInterval;
+        for (int i = 0; i < pendingAcks.size(); i++)
+        {
+            Session s = pendingAcks.get(i);
+            if (s.ackDue() != 0 && s.ackDue() - now < wait)
+            {
+                wait = s.ackDue() - now;
+            }
+        }
+        return wait < 1 ? 1 : wait;
+    }
+
+    /**
+        dispatch()
+        hand a packet to the session it belongs to. a SYN from an unknown
+        address, or from one whose last connection is closed, opens a new
+        session.
+        @param addr - the address the packet came from
+        @param packet - the packet received
+        @return true if a session kept the packet's buffer, through a packet
+            from keep()
+    */
+    private boolean dispatch(SocketAddress addr, Packet packet) throws IOException
+    {
+        Session session = sessions.get(addr);
+        if (packet.syn() && packet.checksum()
+            && (session == null || session.state() == Session.CLOSED))
+        {
+            printv("Got a SYN request from "+addr);
+            session = new Session(this, addr, newConnId());
+            sessions.put(addr, session);
+        }
+        if (session == null)
+        {
+            printv("No session for "+addr+", dropping packet");
+            return false;
+        }
+        return session.receive(packet);
+    }
+
+    /**
+        newConnId()
+        get a connection id that is not zero, since a zero id is what a
+        client sends before it has been given one
     */
-    private synchronized void sendAck(int seqNum) throws IOException
+    private int newConnId()
     {
-        if (fcntcp.debug)
+        if (nextConnId == 0)
         {
-            Random rand = new Random();
-            if (rand.nextDouble() < chanceToDropAcks)
-                return;
+            nextConnId++;
         }
-        Packet ack = new Packet(
-             0 // seq num
-            ,seqNum // ack num
-            ,1,0,0,0 // ack, rst, syn, fin
-            ,window // window
-            ,null,0 // data, datalen
-        );
-        byte[] ackBytes = ack.getBytes();
-        DatagramPacket datagram = new DatagramPacket
-            (ackBytes, ackBytes.length, clientAddr, clientPort);
-        printv("Sending ack "+seqNum);
-        socket.send(datagram);
+        return nextConnId++;
     }
 
     /**
-        handshake()
-        wait for and perform a handshake. 
-        @return true if connected, false otherwise
+        sweep()
+        forget sessions that finished or went quiet
+        @param now - the current time in ms
     */
-    private synchronized boolean handshake() 
+    private void sweep(long now)
     {
-        try
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext())
         {
-            byte[] data = new byte[Packet.headerLen];
-            DatagramPacket datagram = new DatagramPacket(data, data.length);
-            // receive a syn request
-            socket.receive(datagram);
-            clientAddr = datagram.getAddress();
-            clientPort = datagram.getPort();
-            Packet syn = new Packet(datagram.getData() );
-            if (syn.checksum() && syn.syn() )
+            Session s = it.next();
+            if (s.expired(now))
             {
-                printv("Got a SYN request");
-                // we got a syn request
-                // make synack response
-                Packet synAck = new Packet(
-                     seqNum // seq num TODO
-                    ,ackNum++ // ack num
-                    ,1,0,1,0 // ack, rst, syn, fin
-                    ,window // window
-                    ,null,0 // data, datalen
-                );
-                byte[] synAckBytes = synAck.getBytes();
-                datagram= new DatagramPacket(synAckBytes, synAckBytes.length, clientAddr, clientPort);
-                //try{Thread.sleep(500);}catch(InterruptedException e){}
-                socket.send(datagram);
-                printv("Sent SYNACK.");
-                // wait for ack
-                data = new byte[Packet.headerLen];
-                datagram= new DatagramPacket(data, data.length);
-                socket.setSoTimeout(2*timeout);
-                socket.receive(datagram);
-                socket.setSoTimeout(0);
-                Packet ack = new Packet(datagram.getData());
-                printv(ack.toString());
-                if (ack.checksum() && ack.ack() && ack.seqNum() == nextSeq && !ack.syn() && !ack.fin())
-                {
-                    printv("Connection established");
-                    return true;
-                }
-                printv("Not a valid ACK");
+                printv("Forgetting connection "+s.connId());
+                s.close();
+                it.remove();
             }
-            printv("Not a valid SYN request");
         }
-        catch (SocketTimeoutException e){}
-        catch (IOException e){}
-        return false;
     }
 
     /**
-        finshake()
-        do the fin procedure. 
-        @param fin - the first packet that had the fin flag set.
+        send()
+        send a packet to a client. if the socket buffer is full the packet is
+        dropped, the same as it would be anywhere else on the path.
+        @param packet - the packet to send
+        @param addr - the client to send it to
+    */
+    public void send(Packet packet, SocketAddress addr) throws IOException
+    {
+        int start = packet.writeHeader(sendBuf, Packet.maxHeaderLen);
+        sendBuf.limit(Packet.maxHeaderLen + packet.dataLen()).position(start);
+        channel.send(sendBuf, addr);
+        sendBuf.clear();
+    }
+
+    /**
+        sendAck()
+        send an ack to a client. with debug turned on this may drop the ack.
+        @param ack - the ack packet
+        @param addr - the client to send it to
     */
-    private synchronized boolean finshake(Packet fin)
+    public void sendAck(Packet ack, SocketAddress addr) throws IOException
     {
-        // received fin already
-        // send ack
-        Packet ack = new Packet(
-            seqNum // seq num
-            ,fin.seqNum()+1 // ack num
-            ,1,0,0,0 // ack, rst, syn, fin
-            ,window // window 
-            ,null, 0 // data, datalen
-        );
-        try
+        if (fcntcp.debug && rand.nextDouble() < chanceToDropAcks)
         {
-            byte[] data = ack.getBytes();
-            DatagramPacket datagram = new DatagramPacket(data, data.length, clientAddr, clientPort);
-            socket.send(datagram);
-            return true;
+            return;
         }
-        catch (IOException e){}
-        return false;
+        send(ack, addr);
     }
 
+    /**
+        window()
+        get the receive window advertised to clients
+    */
+    public int window(){return window;}
+
+    /**
+        ackEvery()
+        get how many full packets may arrive before an ack must be sent
+    */
+    public int ackEvery(){return ackEvery;}
+
+    /**
+        ackDelay()
+        get the longest an ack may be held back, in ms
+    */
+    public int ackDelay(){return ackDelay;}
+
     /**
         print()
         print a message to the console
         @param s - the string to print
     */
-    private synchronized void print(String s)
+    public void print(String s)
     {
         System.out.println("Server: "+s);
         //if (fcntcp.debug){System.out.println("Server: "+s);}
@@ -283,10 +424,10 @@ public class Server
 
     /**
         printv()
-        print a message to the console when verbose is turned on 
+        print a message to the console when verbose is turned on
         @param s - the string to print
     */
-    private synchronized void printv(String s)
+    public void printv(String s)
     {
         if (fcntcp.verbose){System.out.println("Server: "+s);}
     }
@@ -0,0 +1,623 @@
+/**
+    Session.java
+    @author Jason Tu <jwt8264@rit.edu>
+
+    This class holds the server side state of one client connection: its
+    handshake state, the buffer of out of order packets and the running MD5
+    sum of the file being received, and the file it is stored to if the
+    server saves what it receives. The sum itself is run on the server's
+    digest stage, which is handed the file a large batch at a time. The
+    Server owns one Session per remote address and hands it every packet
+    that arrives from that address.
+*/
+import java.io.File;
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+
+public class Session
+{
+    public static final int SYN_RCVD = 1;
+    public static final int ESTABLISHED = 2;
+    public static final int CLOSED = 3;
+
+    // how long a closed session is kept around to re-ack a retransmitted FIN
+    public static final long LINGER_MS = 10 * 1000;
+    // how long an open session may go without hearing from the client
+    public static final long IDLE_MS = 60 * 1000;
+
+    private Server server;
+    private SocketAddress addr; // the client's address
+    private int connId; // the connection id the client stamps on its packets
+    private int state = SYN_RCVD;
+    private long lastHeard; // when we last received a packet, in ms
+
+    private int ackNum = 0;
+    private int nextSeq = 0; // next sequence number we expect
+    private long received = 0; // how many bytes have arrived in order
+    private int seqNum = 0;
+    private int windowShift = 0; // how far our advertised window is scaled down
+    private boolean sackPermitted = false; // the client asked for SACK blocks
+    private boolean timestamps = false; // the client asked for timestamps
+    private boolean treeHash = false; // the client asked to sum the file as a tree
+    private int tsRecent = 0; // the TSval to echo, from the packet at the left edge of the window
+    private int lastAckSent = 0; // the ack number of the last ack we sent
+    private boolean crc = false; // packets after the handshake carry a CRC32C
+    private int mss = Packet.MSS; // the segment size agreed with the client
+
+    private int unacked = 0; // full packets received since our last ack
+    private boolean ackNow = false; // an ack should go out as soon as reads are drained
+    private long ackDue = 0; // when a delayed ack must go out, in ms, 0 if none is waiting
+    private boolean ackListed = false; // on the server's list of sessions that owe an ack
+    private int recent; // the sequence number of the last data packet received
+    private Packet ackPacket; // reused for every ack sendAck() sends
+
+    private MD5Summer md5 = new MD5Summer();
+    private TreeHash tree; // the file's tree hash, if the client asked for one
+    private ReorderBuffer buffer;
+    private FileSink sink; // where the file is stored, or null to only sum it
+    private ByteBuffer batch; // in-order bytes waiting to go to the digest stage, when not saving
+    private int batched = 0; // how much of batch is filled
+
+    /**
+        Session()
+        create the state for a client that just sent us a SYN
+        @param s - the server this session belongs to
+        @param a - the address of the client
+        @param id - the connection id given to this client
+    */
+    public Session(Server s, SocketAddress a, int id)
+    {
+        server = s;
+        addr = a;
+        connId = id;
+        lastHeard = System.currentTimeMillis();
+    }
+
+    /**
+        receive()
+        handle a packet that arrived from this session's client.
+        @param packet - the packet received
+        @return true if the session kept the packet's buffer, and will give
+            it back to the server's pool itself once the payload is summed
+    */
+    public boolean receive(Packet packet) throws IOException
+    {
+        if (!packet.checksum())
+        {
+            return false;
+        }
+        if (packet.syn())
+        {
+            // a new client, our SYNACK was lost, or the client is retrying
+            if (state == SYN_RCVD)
+            {
+                windowShift = packet.wscale() >= 0 ? scaleFor(server.window()) : 0;
+                sackPermitted = packet.sackPermitted();
+                timestamps = packet.timestamps();
+                treeHash = packet.treeHash() == TreeHash.CHUNK_SHIFT;
+                crc = packet.altChecksum() == Packet.CHECKSUM_CRC32C;
+                tsRecent = packet.tsVal();
+                mss = packet.mss() > 0 ? Math.min(packet.mss(), server.maxMss()) : Packet.MSS;
+                buffer = new ReorderBuffer(server.window(), mss);
+                sendSynAck(packet.wscale() >= 0, packet.mss() > 0);
+            }
+            return false;
+        }
+        if (packet.connId() != connId)
+        {
+            server.printv("Dropping packet for old connection "+packet.connId());
+            return false;
+        }
+        if (packet.crc() != crc)
+        {
+            server.printv("Dropping packet without the agreed checksum");
+            return false;
+        }
+        lastHeard = System.currentTimeMillis();
+        if (packet.probe() >= 0)
+        {
+            // a path MTU probe carries no data; just say it got here
+            if (state != CLOSED)
+            {
+                sendProbeAck(packet.probe());
+            }
+            return false;
+        }
+        if (state == SYN_RCVD)
+        {
+            // either the ACK of our SYNACK, or data sent after a lost ACK
+            if (packet.seqNum() != nextSeq || packet.fin())
+            {
+                server.printv("Not a valid ACK");
+                return false;
+            }
+            if (packet.mss() > 0 && packet.mss() < mss)
+            {
+                // the client probed the path and settled on less
+                mss = packet.mss();
+                buffer = new ReorderBuffer(server.window(), mss);
+            }
+            server.printv("Connection "+connId+" established");
+            state = ESTABLISHED;
+            String name = null;
+            if (server.saveDir() != null)
+            {
+                name = new File(server.saveDir(), "conn-"+connId).getPath();
+            }
+            if (treeHash)
+            {
+                // chunks are hashed as they fill, so out of order packets
+                // go to the sink even when nothing is saved
+                tree = new TreeHash();
+                sink = new FileSink(name, tree);
+            }
+            else if (name != null)
+            {
+                sink = new FileSink(name, md5, server.digest());
+            }
+            if (packet.dataLen() == 0)
+            {
+                return false;
+            }
+        }
+        if (packet.fin())
+        {
+            finshake(packet);
+            return false;
+        }
+        if (state != ESTABLISHED)
+        {
+            return false;
+        }
+        if (fcntcp.verbose) // don't build the string for every packet otherwise
+        {
+            server.printv("Received packet "+packet.seqNum()+" on connection "+connId);
+        }
+        if (timestamps && packet.timestamps())
+        {
+            if (packet.tsVal() - tsRecent < 0
+                && (packet.seqNum() + packet.dataLen()) - nextSeq <= 0)
+            {
+                // PAWS: stamped before a packet we already took, so this is
+                // an old duplicate, maybe from a wrap of the sequence numbers
+                // ago. one that still brings something past nextSeq may be
+                // an original that a retransmission filling a hole
+                // overtook, so it is kept
+                if (fcntcp.verbose)
+                {
+                    server.printv("Dropping old packet "+packet.seqNum()+" on connection "+connId);
+                }
+                ackAll();
+                return false;
+            }
+            // only echo a packet that moves the left edge on, so the echo
+            // is from the copy that got the ack moving, not one that came
+            // early and out of order (RFC 7323 section 4.3)
+            if (packet.seqNum() - lastAckSent <= 0)
+            {
+                tsRecent = packet.tsVal();
+            }
+        }
+        int before = nextSeq;
+        boolean holes = buffer.size() > 0;
+        boolean added;
+        Packet held = null; // what the reorder buffer holds for the packet
+        if (sink != null)
+        {
+            // the payload goes to its place in the file now, whatever its
+            // order, and the buffer only notes that it came
+            added = buffer.mark(packet, nextSeq);
+            if (added)
+            {
+                sink.write(received + (packet.seqNum() - nextSeq),
+                    packet.buffer(), packet.dataOff(), packet.dataLen());
+            }
+        }
+        else
+        {
+            // the server decodes every datagram into the same packet, so
+            // one that has to wait for the ones before it is held as a
+            // packet of its own, once it is known to be kept, and a
+            // duplicate or one beyond the window costs nothing. one that
+            // is next in order goes in as it is, since processBuffer()
+            // takes it straight back out.
+            held = packet;
+            if (packet.seqNum() != nextSeq && buffer.accepts(packet.seqNum(), nextSeq))
+            {
+                held = server.keep(packet, mss);
+            }
+            added = buffer.add(held, nextSeq);
+        }
+        // the server can reuse the packet's buffer unless a packet held for
+        // later still refers to it
+        boolean kept = added && held != null && held != packet
+            && held.buffer() == packet.buffer();
+        if (added)
+        {
+            processBuffer();
+        }
+        recent = packet.seqNum();
+        if (!added || packet.seqNum() != before || holes)
+        {
+            // a duplicate, a gap, or a hole being filled: the client needs
+            // to hear about it right away, one ack per packet, since it
+            // counts duplicate acks to find losses
+            ackAll();
+            return kept;
+        }
+        if (packet.dataLen() < mss || ++unacked >= server.ackEvery())
+        {
+            // a short packet is most likely the end of the file
+            ackNow = true;
+        }
+        else if (ackDue == 0)
+        {
+            ackDue = System.currentTimeMillis() + server.ackDelay();
+        }
+        server.ackPending(this);
+        return kept;
+    }
+
+    /**
+        flushAck()
+        send the ack this session owes the client, if it is due. the server
+        calls this once it has drained every waiting datagram, so a burst of
+        packets gets a single cumulative ack.
+        @param now - the current time in ms
+        @return true if no ack is owed any more
+    */
+    public boolean flushAck(long now) throws IOException
+    {
+        if (state == CLOSED)
+        {
+            return true; // the fin ack already covered everything
+        }
+        if (!ackNow && (ackDue == 0 || now < ackDue))
+        {
+            return ackDue == 0;
+        }
+        ackAll();
+        return true;
+    }
+
+    // ack everything received so far, settling whatever ack was owed
+    private void ackAll() throws IOException
+    {
+        sendAck(nextSeq, recent);
+        ackNow = false;
+        ackDue = 0;
+        unacked = 0;
+    }
+
+    /**
+        ackListed()
+        get whether the server has this session on its list of sessions
+        that owe an ack
+    */
+    public boolean ackListed(){return ackListed;}
+
+    /**
+        setAckListed()
+        note whether the server has this session on its list of sessions
+        that owe an ack
+        @param l - true once it is listed, false once it is taken off
+    */
+    public void setAckListed(boolean l)
+    {
+        ackListed = l;
+    }
+
+    /**
+        ackDue()
+        get when a delayed ack must go out
+        @return the time in ms, or 0 if none is waiting
+    */
+    public long ackDue()
+    {
+        return ackNow ? 0 : ackDue;
+    }
+
+    /**
+        processBuffer()
+        batch up every buffered packet that is now in order to be summed,
+        and give its buffer back. when saving, the sink hands the file over
+        instead and only the next expected sequence number moves on.
+    */
+    private void processBuffer()
+    {
+        if (sink != null)
+        {
+            int len;
+            while ((len = buffer.advance()) >= 0)
+            {
+                nextSeq += len;
+                received += len;
+            }
+            return;
+        }
+        Packet p;
+        while ((p = buffer.poll()) != null)
+        {
+            nextSeq += p.dataLen();
+            received += p.dataLen();
+            digest(p.buffer(), p.dataOff(), p.dataLen());
+            server.recycle(p);
+        }
+    }
+
+    /**
+        digest()
+        copy in-order bytes into the batch, handing it to the digest stage
+        whenever it fills
+        @param src - the buffer holding the bytes
+        @param off - where in src they start
+        @param len - how many there are
+    */
+    private void digest(ByteBuffer src, int off, int len)
+    {
+        while (len > 0)
+        {
+            if (batch == null)
+            {
+                batch = server.digest().buffer();
+                batched = 0;
+            }
+            int n = Math.min(len, batch.capacity() - batched);
+            batch.put(batched, src, off, n);
+            batched += n;
+            off += n;
+            len -= n;
+            if (batched == batch.capacity())
+            {
+                server.digest().submit(md5, batch, batched);
+                batch = null;
+            }
+        }
+    }
+
+    /**
+        scaleFor()
+        get the smallest window scale that fits a window in the window field
+        @param window - the window in bytes
+    */
+    private static int scaleFor(int window)
+    {
+        int shift = 0;
+        while (shift < Packet.maxWindowScale && (window >> shift) > Packet.maxWindow)
+        {
+            shift++;
+        }
+        return shift;
+    }
+
+    /**
+        advertisedWindow()
+        get the value for the window field of our acks. once the digest
+        stage or the tree hash has less room left than the window, the
+        window shrinks to what it has, down to a couple of segments so the
+        client always has acks coming to reopen it.
+    */
+    private int advertisedWindow()
+    {
+        long room = Math.min(server.window(), Math.min(server.digest().room(), TreeHash.room()));
+        if (room < 2 * mss)
+        {
+            room = 2 * mss;
+        }
+        int w = (int)room >> windowShift;
+        return w > Packet.maxWindow ? Packet.maxWindow : w;
+    }
+
+    /**
+        sendSynAck()
+        answer the client's SYN, handing it its connection id. the window in
+        a SYNACK is never scaled.
+        @param wscale - true if the client offered window scaling
+        @param mssOption - true if the client said what segment size it wants
+    */
+    private void sendSynAck(boolean wscale, boolean mssOption) throws IOException
+    {
+        int window = server.window();
+        Packet synAck = new Packet(
+             seqNum // seq num
+            ,ackNum // ack num
+            ,1,0,1,0 // ack, rst, syn, fin
+            ,window > Packet.maxWindow ? Packet.maxWindow : window // window
+            ,null,0 // data, datalen
+        );
+        synAck.setConnId(connId);
+        if (wscale)
+        {
+            synAck.setWscale(windowShift);
+        }
+        if (sackPermitted)
+        {
+            synAck.setSackPermitted();
+        }
+        if (crc)
+        {
+            synAck.setAltChecksum(Packet.CHECKSUM_CRC32C);
+        }
+        if (treeHash)
+        {
+            synAck.setTreeHash(TreeHash.CHUNK_SHIFT);
+        }
+        if (mssOption)
+        {
+            synAck.setMss(mss);
+        }
+        stamp(synAck);
+        server.send(synAck, addr);
+        server.printv("Sent SYNACK for connection "+connId);
+    }
+
+    /**
+        sendAck()
+        send an ack to the client, with SACK blocks for anything buffered
+        if the client asked for them.
+        @param seqNum - the sequence number we are ack'ing
+        @param recent - the sequence number of the packet that caused the ack
+    */
+    private void sendAck(int seqNum, int recent) throws IOException
+    {
+        // the server writes it out before this returns, so every ack is
+        // the same packet
+        if (ackPacket == null)
+        {
+            ackPacket = new Packet(
+                 0 // seq num
+                ,0 // ack num
+                ,1,0,0,0 // ack, rst, syn, fin
+                ,0 // window
+                ,null,0 // data, datalen
+            );
+            ackPacket.setConnId(connId);
+        }
+        ackPacket.setAckNum(seqNum);
+        ackPacket.setWindow(advertisedWindow());
+        ackPacket.setCrc(crc);
+        ackPacket.setSack(null);
+        stamp(ackPacket);
+        if (sackPermitted)
+        {
+            int room = (Packet.maxOptionsLen - ackPacket.optionsLen() - 2) / 8;
+            ackPacket.setSack(buffer.sackBlocks(seqNum, recent, room));
+        }
+        if (fcntcp.verbose)
+        {
+            server.printv("Sending ack "+seqNum+" on connection "+connId);
+        }
+        server.sendAck(ackPacket, addr);
+        lastAckSent = seqNum;
+    }
+
+    /**
+        sendProbeAck()
+        answer a path MTU probe straight away, echoing its size, so the
+        client knows a segment that big gets through
+        @param size - the size the probe was padded to
+    */
+    private void sendProbeAck(int size) throws IOException
+    {
+        Packet ack = new Packet(
+             0 // seq num
+            ,nextSeq // ack num
+            ,1,0,0,0 // ack, rst, syn, fin
+            ,advertisedWindow() // window
+            ,null,0 // data, datalen
+        );
+        ack.setConnId(connId);
+        ack.setCrc(crc);
+        ack.setProbe(size);
+        stamp(ack);
+        server.send(ack, addr);
+    }
+
+    /**
+        stamp()
+        put the timestamps option on a packet to the client, if it asked
+        for timestamps
+        @param p - the packet
+    */
+    private void stamp(Packet p)
+    {
+        if (timestamps)
+        {
+            p.setTimestamps(NetworkServices.timestamp(), tsRecent);
+        }
+    }
+
+    /**
+        finshake()
+        do the fin procedure. the first FIN finishes the MD5 sum, or checks
+        the tree hash against the root it carries, and finishes the saved
+        file. later ones are retransmissions and only need to be ack'd
+        again.
+        @param fin - the packet that had the fin flag set.
+    */
+    private void finshake(Packet fin) throws IOException
+    {
+        Packet ack = new Packet(
+            seqNum // seq num
+            ,fin.seqNum()+1 // ack num
+            ,1,0,0,0 // ack, rst, syn, fin
+            ,advertisedWindow() // window
+            ,null, 0 // data, datalen
+        );
+        ack.setConnId(connId);
+        ack.setCrc(crc);
+        stamp(ack);
+        server.send(ack, addr);
+        if (state != CLOSED)
+        {
+            state = CLOSED;
+            buffer.clear();
+            if (sink != null)
+            {
+                sink.finish(received);
+                sink = null;
+                if (server.saveDir() != null)
+                {
+                    server.printv("Saved connection "+connId+", "+received+" bytes");
+                }
+            }
+            else if (batch != null)
+            {
+                server.digest().submit(md5, batch, batched);
+                batch = null;
+            }
+            if (tree != null)
+            {
+                // the FIN's buffer goes back to the pool, so copy the root out
+                byte[] expected = null;
+                if (fin.dataLen() > 0)
+                {
+                    expected = new byte[fin.dataLen()];
+                    fin.buffer().get(fin.dataOff(), expected);
+                }
+                tree.report(received, expected);
+            }
+            else
+            {
+                // printed by the digest stage once it has summed everything
+                server.digest().finish(md5);
+            }
+        }
+    }
+
+    /**
+        expired()
+        determine if this session can be forgotten
+        @param now - the current time in ms
+        @return true if the session is closed or has gone quiet
+    */
+    public boolean expired(long now)
+    {
+        if (state == CLOSED)
+        {
+            return now - lastHeard > LINGER_MS;
+        }
+        return now - lastHeard > IDLE_MS;
+    }
+
+    /**
+        close()
+        let go of the file of a session that is forgotten before it finished
+    */
+    public void close()
+    {
+        if (sink != null)
+        {
+            sink.close();
+            sink = null;
+        }
+    }
+
+    // simple getters
+    public int connId(){return connId;}
+    public int state(){return state;}
+    public SocketAddress addr(){return addr;}
+}
@@ -0,0 +1,331 @@
+/**
+    TimingWheel.java
+    This class provides the retransmission timeouts for all of a client's
+    packets using a hashed timing wheel. One ticker thread walks a ring of
+    slots; a timeout is put in the slot its deadline falls into, and is also
+    kept in a map by sequence number so it can be cancelled without a search.
+    Scheduling and cancelling are O(1), and no thread is created per packet.
+*/
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+public class TimingWheel implements Runnable
+{
+    public static final int DEFAULT_TICK = 10; // ms per slot
+    public static final int DEFAULT_SIZE = 512; // slots in the wheel
+
+    private Client client;
+    private int tickMs;
+    private Entry[] slots; // head of the list of entries in each slot
+    private HashMap<Integer, Entry> bySeq; // pending entries by sequence number
+    private long startTime; // when the wheel started, in ms
+    private long currentTick = 0; // the last tick that has been processed
+    private Thread ticker;
+    private volatile boolean done = false;
+
+    /**
+        Entry
+        a pending timeout. entries in the same slot form a doubly linked list
+        so one can be unlinked from the middle in constant time.
+    */
+    private static class Entry
+    {
+        int seqNum;
+        long deadline; // the tick this entry expires on
+        int slot;
+        Entry prev;
+        Entry next;
+    }
+
+    /**
+        TimingWheel()
+        Construct a new timing wheel
+        @param c - the client to notify of timeouts
+        @param tick - the length of one slot in ms
+        @param size - the number of slots in the wheel
+    */
+    public TimingWheel(Client c, int tick, int size)
+    {
+        client = c;
+        tickMs = tick;
+        slots = new Entry[size];
+        bySeq = new HashMap<Integer, Entry>();
+    }
+
+    /**
+        start()
+        start the ticker thread
+    */
+    public synchronized void start()
+    {
+        startTime = System.currentTimeMillis();
+        ticker = new Thread(this);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+        stop()
+        stop the ticker thread and forget every pending timeout
+    */
+    public synchronized void stop()
+    {
+        done = true;
+        if (ticker != null)
+        {
+            ticker.interrupt();
+        }
+        bySeq.clear();
+        for (int i = 0; i < slots.length; i++)
+        {
+            slots[i] = null;
+        }
+    }
+
+    /**
+        schedule()
+        start a timeout for a packet. any timeout already pending for the
+        same sequence number is replaced.
+        @param seq - the sequence number of the packet
+        @param timeout - the length of the timeout in ms
+    */
+    public synchronized void schedule(int seq, int timeout)
+    {
+        Entry e = bySeq.get(seq);
+        if (e != null)
+        {
+            unlink(e);
+        }
+        else
+        {
+            e = new Entry();
+            e.seqNum = seq;
+            bySeq.put(seq, e);
+        }
+        long ticks = (timeout + tickMs - 1) / tickMs;
+        if (ticks < 1)
+        {
+            ticks = 1;
+        }
+        e.deadline = currentTick + ticks;
+        e.slot = (int)(e.deadline % slots.length);
+        e.prev = null;
+        e.next = slots[e.slot];
+        if (e.next != null)
+        {
+            e.next.prev = e;
+        }
+        slots[e.slot] = e;
+    }
+
+    /**
+        cancel()
+        stop the timeout of a packet, if it has one
+        @param seq - the sequence number of the packet
+    */
+    public synchronized void cancel(int seq)
+    {
+        Entry e = bySeq.remove(seq);
+        if (e != null)
+        {
+            unlink(e);
+        }
+    }
+
+    /**
+        pending()
+        get how many timeouts are waiting to expire
+    */
+    public synchronized int pending()
+    {
+        return bySeq.size();
+    }
+
+    /**
+        unlink()
+        take an entry out of its slot's list
+    */
+    private void unlink(Entry e)
+    {
+        if (e.prev != null)
+        {
+            e.prev.next = e.next;
+        }
+        else
+        {
+            slots[e.slot] = e.next;
+        }
+        if (e.next != null)
+        {
+            e.next.prev = e.prev;
+        }
+        e.prev = null;
+        e.next = null;
+    }
+
+    /**
+        advance()
+        process every tick up to the current time, collecting the sequence
+        numbers of the entries that expired
+        @param now - the current time in ms
+        @return the expired sequence numbers
+    */
+    private synchronized ArrayList<Integer> advance(long now)
+    {
+        ArrayList<Integer> expired = new ArrayList<Integer>();
+        long target = (now - startTime) / tickMs;
+        while (currentTick < target && !done)
+        {
+            currentTick++;
+            int slot = (int)(currentTick % slots.length);
+            Entry e = slots[slot];
+            while (e != null)
+            {
+                Entry next = e.next;
+                // entries more than one turn away stay for a later pass
+                if (e.deadline <= currentTick)
+                {
+                    unlink(e);
+                    bySeq.remove(e.seqNum);
+                    expired.add(e.seqNum);
+                }
+                e = next;
+            }
+        }
+        return expired;
+    }
+
+    /**
+        run()
+        the main loop of the ticker thread. the client is notified outside of
+        the wheel's lock, since the client calls into the wheel while holding
+        its own lock.
+    */
+    public void run()
+    {
+        try
+        {
+            while (!done)
+            {
+                long next = startTime + (currentTickSnapshot() + 1) * tickMs;
+                long sleep = next - System.currentTimeMillis();
+                if (sleep > 0)
+                {
+                    Thread.sleep(sleep);
+                }
+                for (int seq : advance(System.currentTimeMillis()))
+                {
+                    if (done)
+                    {
+                        break;
+                    }
+                    try
+                    {
+                        client.packetTimedOut(seq);
+                    }
+                    catch (IOException e)
+                    {
+                        // the next timeout resends it, so keep ticking
+                        client.print("Failed to resend packet "+seq+": "+e.getMessage());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e){}
+    }
+
+    /**
+        currentTickSnapshot()
+        get the last processed tick
+    */
+    private synchronized long currentTickSnapshot()
+    {
+        return currentTick;
+    }
+
+    /**
+        main method to compare the cost of keeping timeouts for many packets
+        in flight using a thread per packet (TimeoutTimer, kept in a list the
+        way Client used to) against using a timing wheel. both are timed on
+        the same three steps: starting their threads, scheduling a timeout
+        for every packet, and cancelling the timeouts a run of acks covers.
+        the old client did the first two together for each packet it sent.
+    */
+    public static void main(String[] args) throws Exception
+    {
+        int inFlight = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int acks = 100;
+        int longTimeout = 60 * 1000; // long enough that nothing fires
+        Client c = new Client("localhost", 0, null, longTimeout);
+        int baseThreads = Thread.activeCount();
+
+        // thread per packet
+        long t0 = System.nanoTime();
+        LinkedList<TimeoutTimer> timeouts = new LinkedList<TimeoutTimer>();
+        ArrayList<TimeoutTimer> started = new ArrayList<TimeoutTimer>();
+        for (int i = 0; i < inFlight; i++)
+        {
+            TimeoutTimer timer = new TimeoutTimer(c, longTimeout, i * Packet.MSS);
+            while (timeouts.contains(timer))
+            {
+                timeouts.remove(timeouts.indexOf(timer)).interrupt();
+            }
+            timeouts.add(timer);
+            started.add(timer);
+        }
+        long t1 = System.nanoTime();
+        for (TimeoutTimer timer : started)
+        {
+            timer.start();
+        }
+        long t2 = System.nanoTime();
+        int threadPeak = Thread.activeCount() - baseThreads;
+        // in steady state the window stays full, so time a sample of acks
+        // against a full list and then clear out the rest
+        for (int i = 1; i <= acks; i++)
+        {
+            int ackNum = i * Packet.MSS;
+            for (int j = timeouts.size()-1; j >= 0; j--)
+            {
+                if (timeouts.get(j).seqNum() < ackNum)
+                {
+                    timeouts.remove(j).interrupt();
+                }
+            }
+        }
+        long t3 = System.nanoTime();
+        for (TimeoutTimer timer : started)
+        {
+            timer.interrupt();
+            timer.join();
+        }
+
+        // timing wheel
+        baseThreads = Thread.activeCount();
+        TimingWheel wheel = new TimingWheel(c, DEFAULT_TICK, DEFAULT_SIZE);
+        long t4 = System.nanoTime();
+        wheel.start();
+        long t5 = System.nanoTime();
+        for (int i = 0; i < inFlight; i++)
+        {
+            wheel.schedule(i * Packet.MSS, longTimeout);
+        }
+        long t6 = System.nanoTime();
+        int wheelPeak = Thread.activeCount() - baseThreads;
+        for (int i = 0; i < acks; i++)
+        {
+            wheel.cancel(i * Packet.MSS);
+        }
+        long t7 = System.nanoTime();
+        wheel.stop();
+
+        System.out.println(inFlight+" packets in flight");
+        System.out.println(String.format("threads:  start %8.1f ms, schedule %8.1f ms, %10.2f us per ack, %d timer threads",
+            (t2-t1)/1e6, (t1-t0)/1e6, (t3-t2)/1e3/acks, threadPeak));
+        System.out.println(String.format("wheel:    start %8.1f ms, schedule %8.1f ms, %10.2f us per ack, %d timer threads",
+            (t5-t4)/1e6, (t6-t5)/1e6, (t7-t6)/1e3/acks, wheelPeak));
+    }
+}
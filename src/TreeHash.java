@@ -0,0 +1,294 @@
+/**
+    TreeHash.java
+    This class sums a file as a Merkle tree, the alternative to MD5 that a
+    client can ask for with --tree-hash. The file is cut into CHUNK-sized
+    chunks and each chunk is hashed on its own, so chunks can be hashed in
+    any order and on as many cores as there are. The chunk hashes are then
+    combined into one root hash the way RFC 6962 does it, with SHA-256:
+
+        leaf = SHA-256(0x00 || chunk)
+        node = SHA-256(0x01 || left || right)
+
+    where a run of n hashes is split after the largest power of two less
+    than n. An empty file's root is the SHA-256 of nothing.
+
+    The server hands each chunk over as soon as all of it has arrived,
+    whatever order that is, and the hashing runs on the common ForkJoinPool
+    while the receive loop goes on. The client hashes the whole file the
+    same way while it sends, and puts the root in its FIN, so the server
+    can say whether the file came through intact.
+*/
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TreeHash
+{
+    public static final int CHUNK_SHIFT = 20; // what the option carries
+    public static final int CHUNK = 1 << CHUNK_SHIFT; // bytes in each leaf
+    public static final long MAX_BACKLOG = 64L * CHUNK; // most bytes waiting to be hashed
+
+    // buffers for chunks, handed back by the task that hashed them
+    private static ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static AtomicLong backlog = new AtomicLong(); // bytes handed over but not hashed yet
+
+    private static ThreadLocal<MessageDigest> sha = ThreadLocal.withInitial(TreeHash::newDigest);
+    private static ThreadLocal<ByteBuffer> readBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocate(CHUNK));
+
+    private ForkJoinPool pool;
+    private HashMap<Long, ForkJoinTask<byte[]>> leaves = new HashMap<Long, ForkJoinTask<byte[]>>(); // by chunk number
+
+    /**
+        TreeHash()
+        start summing a file on the common pool
+    */
+    public TreeHash()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+        TreeHash()
+        start summing a file
+        @param p - the pool to hash chunks on
+    */
+    public TreeHash(ForkJoinPool p)
+    {
+        pool = p;
+    }
+
+    /**
+        buffer()
+        get an empty CHUNK-sized buffer to gather a chunk in
+    */
+    public static ByteBuffer buffer()
+    {
+        ByteBuffer b = free.poll();
+        return b == null ? ByteBuffer.allocate(CHUNK) : b;
+    }
+
+    /**
+        room()
+        get how many more bytes can be handed over before the hashing falls
+        too far behind
+    */
+    public static long room()
+    {
+        return MAX_BACKLOG - backlog.get();
+    }
+
+    /**
+        chunk()
+        hash a chunk of the file. the buffer is no longer the caller's and
+        goes back to buffer() once the chunk is hashed.
+        @param number - the chunk's place in the file, in chunks
+        @param buf - a buffer from buffer()
+        @param len - how many bytes of it, from the start, are the chunk.
+            only the last chunk of a file is short.
+    */
+    public void chunk(long number, ByteBuffer buf, int len)
+    {
+        backlog.addAndGet(len);
+        leaves.put(number, pool.submit(() -> {
+            byte[] h = leaf(buf.array(), buf.arrayOffset(), len);
+            free.add(buf);
+            backlog.addAndGet(-len);
+            return h;
+        }));
+    }
+
+    /**
+        root()
+        combine the chunks into the root, once they are all hashed
+        @param length - how many bytes the file has. every chunk of it must
+            have been given to chunk().
+        @return the root, to join
+    */
+    public ForkJoinTask<byte[]> root(long length)
+    {
+        long n = (length + CHUNK - 1) / CHUNK;
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<ForkJoinTask<byte[]>>();
+        for (long i = 0; i < n; i++)
+        {
+            tasks.add(leaves.remove(i));
+        }
+        return pool.submit(() -> {
+            byte[][] hashes = new byte[tasks.size()][];
+            for (int i = 0; i < hashes.length; i++)
+            {
+                hashes[i] = tasks.get(i).join();
+            }
+            return combine(hashes, 0, hashes.length);
+        });
+    }
+
+    /**
+        report()
+        print the root once the chunks are hashed, and say if it isn't the
+        one the client sent
+        @param length - how many bytes the file has
+        @param expected - the root the client sent, or null if it sent none
+    */
+    public void report(long length, byte[] expected)
+    {
+        ForkJoinTask<byte[]> root = root(length);
+        pool.execute(() -> {
+            byte[] r = root.join();
+            if (expected == null)
+            {
+                System.out.println(hex(r)+" (the client sent no root to check)");
+            }
+            else if (!Arrays.equals(r, expected))
+            {
+                System.out.println(hex(r)+" does not match the client's "+hex(expected));
+            }
+            else
+            {
+                System.out.println(hex(r));
+            }
+        });
+    }
+
+    /**
+        of()
+        hash a whole file, reading each chunk in by position on the pool
+        @param name - the file's path
+        @param pool - the pool to hash on
+        @return the root, to join
+    */
+    public static ForkJoinTask<byte[]> of(String name, ForkJoinPool pool) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(name, "r");
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        return pool.submit(() -> {
+            try
+            {
+                int n = (int)((length + CHUNK - 1) / CHUNK);
+                List<ForkJoinTask<byte[]>> tasks = new ArrayList<ForkJoinTask<byte[]>>();
+                for (int i = 0; i < n; i++)
+                {
+                    long pos = (long)i * CHUNK;
+                    int len = (int)Math.min(CHUNK, length - pos);
+                    tasks.add(ForkJoinTask.adapt(() -> read(channel, pos, len)).fork());
+                }
+                byte[][] hashes = new byte[n][];
+                for (int i = 0; i < n; i++)
+                {
+                    hashes[i] = tasks.get(i).join();
+                }
+                return combine(hashes, 0, n);
+            }
+            finally
+            {
+                file.close();
+            }
+        });
+    }
+
+    /**
+        read()
+        read a chunk of a file and hash it
+        @param channel - the file
+        @param pos - where the chunk starts
+        @param len - the chunk's length
+    */
+    private static byte[] read(FileChannel channel, long pos, int len) throws IOException
+    {
+        ByteBuffer b = readBuf.get();
+        b.clear().limit(len);
+        while (b.hasRemaining())
+        {
+            if (channel.read(b, pos + b.position()) == -1)
+            {
+                throw new IOException("the file got shorter while it was hashed");
+            }
+        }
+        return leaf(b.array(), 0, len);
+    }
+
+    /**
+        leaf()
+        hash a chunk
+        @param b - the bytes
+        @param off - where the chunk starts
+        @param len - the chunk's length
+    */
+    public static byte[] leaf(byte[] b, int off, int len)
+    {
+        MessageDigest d = sha.get();
+        d.update((byte)0);
+        d.update(b, off, len);
+        return d.digest();
+    }
+
+    /**
+        combine()
+        get the root of a run of leaf hashes
+        @param hashes - the leaf hashes, in file order
+        @param from - the first of the run
+        @param to - just past the last of the run
+    */
+    public static byte[] combine(byte[][] hashes, int from, int to)
+    {
+        int n = to - from;
+        if (n == 0)
+        {
+            return sha.get().digest();
+        }
+        if (n == 1)
+        {
+            return hashes[from];
+        }
+        int k = Integer.highestOneBit(n - 1);
+        byte[] left = combine(hashes, from, from + k);
+        byte[] right = combine(hashes, from + k, to);
+        MessageDigest d = sha.get();
+        d.update((byte)1);
+        d.update(left);
+        d.update(right);
+        return d.digest();
+    }
+
+    /**
+        hex()
+        get a hash as a hex string
+        @param h - the hash
+    */
+    public static String hex(byte[] h)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < h.length; i++)
+        {
+            sb.append(Integer.toString((h[i] & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+
+    // a SHA-256 digest, which every JVM has
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+    TreeHashBench.java
+    This class measures how fast a file can be summed in memory: with MD5
+    on one thread, the way the server sums it by default, and as a tree
+    hash with its chunks hashed on a ForkJoinPool of 1, 2, 4... threads up
+    to the number of processors. Each is warmed up first so the JIT has
+    compiled it, then timed over a few runs. The tree's root is checked to
+    come out the same whatever the number of threads.
+
+    java TreeHashBench [size in MB] [runs]
+*/
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+public class TreeHashBench
+{
+    /**
+        md5()
+        sum the data with MD5, a batch at a time as the digest stage does
+        @param data - the bytes
+        @return the sum
+    */
+    private static String md5(byte[] data)
+    {
+        MD5Summer md5 = new MD5Summer();
+        ByteBuffer b = ByteBuffer.wrap(data);
+        for (int off = 0; off < data.length; off += DigestStage.BATCH)
+        {
+            md5.next(b, off, Math.min(DigestStage.BATCH, data.length - off));
+        }
+        return md5.getResult();
+    }
+
+    /**
+        tree()
+        hash each chunk of the data as a task on a pool, then combine them
+        @param data - the bytes
+        @param pool - the pool to hash on
+        @return the root
+    */
+    private static byte[] tree(byte[] data, ForkJoinPool pool)
+    {
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<ForkJoinTask<byte[]>>();
+        for (int off = 0; off < data.length; off += TreeHash.CHUNK)
+        {
+            int at = off;
+            int len = Math.min(TreeHash.CHUNK, data.length - off);
+            tasks.add(pool.submit(() -> TreeHash.leaf(data, at, len)));
+        }
+        byte[][] hashes = new byte[tasks.size()][];
+        for (int i = 0; i < hashes.length; i++)
+        {
+            hashes[i] = tasks.get(i).join();
+        }
+        return TreeHash.combine(hashes, 0, hashes.length);
+    }
+
+    /**
+        main method to run the benchmark
+    */
+    public static void main(String[] args)
+    {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1000 * 1000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println((size / 1000000)+"MB, "+cores+" processors");
+
+        md5(data);
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+        {
+            md5(data);
+        }
+        double ns = (double)(System.nanoTime() - start) / runs;
+        System.out.printf("  %-22s %6.2f GB/s%n", "MD5, 1 thread", size / ns);
+
+        byte[] root = null;
+        for (int threads = 1; ; threads *= 2)
+        {
+            threads = Math.min(threads, cores);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            byte[] r = tree(data, pool);
+            if (root != null && !Arrays.equals(r, root))
+            {
+                System.out.println("roots differ with "+threads+" threads");
+                return;
+            }
+            root = r;
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++)
+            {
+                tree(data, pool);
+            }
+            ns = (double)(System.nanoTime() - start) / runs;
+            pool.shutdown();
+            System.out.printf("  %-22s %6.2f GB/s%n", "tree, "+threads+(threads == 1 ? " thread" : " threads"), size / ns);
+            if (threads == cores)
+            {
+                break;
+            }
+        }
+    }
+}
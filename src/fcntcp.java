@@ -33,7 +33,7 @@ public class fcntcp
         Client client = null;
         Server server = null;
 
-        int timeout = 1000; // default timeout time in ms
+        int timeout = -1; // fixed timeout time in ms, -1 to adapt to the round trip time
 
         try
         {
@@ -41,9 +41,21 @@ public class fcntcp
             options.addOption("c", false, "run as client");
             options.addOption("s", false, "run as server");
             options.addOption("f", "file", true, "specify file to send, in absolute or relative path (client only)");
-            options.addOption("t", "timeout", true, "timeout in milliseconds for retransmit");
+            options.addOption("t", "timeout", true, "fixed timeout in milliseconds for retransmit (default: estimated from round trip time)");
             options.addOption("v", "verbose", false, "print detailed diagnostics");
             options.addOption("d", "debug", false, "turn on debug mode");
+            options.addOption(null, "no-wscale", false, "don't offer window scaling, limiting the window to 64k (client only)");
+            options.addOption(null, "cc", true, "congestion control: reno, cubic, bbr or ledbat, default reno (client only)");
+            options.addOption(null, "no-sack", false, "don't offer selective acknowledgments (client only)");
+            options.addOption(null, "no-ts", false, "don't offer timestamps, which ledbat needs (client only)");
+            options.addOption(null, "crc32c", false, "offer a 32 bit CRC32C in place of the 16 bit checksum (client only)");
+            options.addOption(null, "tree-hash", false, "sum the file as a SHA-256 Merkle tree of 1MB chunks, hashed in parallel, instead of MD5 (client only)");
+            options.addOption(null, "buffers", true, "how many free packet buffers to keep for reuse, default 8192 (server only)");
+            options.addOption(null, "direct-buffers", false, "receive into direct buffers outside the heap (server only)");
+            options.addOption(null, "mss", true, "largest segment in bytes to agree to, up to "+Packet.MAX_MSS+"; the client probes the path for it, default "+Packet.MSS);
+            options.addOption(null, "save", true, "store each received file in this directory, as conn-<id> (server only)");
+            options.addOption(null, "ack-every", true, "ack at least every this many full packets, default 2 (server only)");
+            options.addOption(null, "ack-delay", true, "longest time in ms to hold back an ack, default 40 (server only)");
 
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
@@ -69,6 +81,13 @@ public class fcntcp
                     timeout = Integer.parseInt(cmd.getOptionValue("timeout"));
                 }
                 client = new Client(serverAddr, port, file, timeout);
+                client.setWindowScaling(!cmd.hasOption("no-wscale"));
+                client.setSack(!cmd.hasOption("no-sack"));
+                client.setTimestamps(!cmd.hasOption("no-ts"));
+                client.setCrc32c(cmd.hasOption("crc32c"));
+                client.setTreeHash(cmd.hasOption("tree-hash"));
+                client.setMaxMss(Integer.parseInt(cmd.getOptionValue("mss", ""+Packet.MSS)));
+                client.setCongestionControl(CongestionController.forName(cmd.getOptionValue("cc", "reno")));
                 client.start();
                 return;
             }
@@ -77,6 +96,16 @@ public class fcntcp
                 // SERVER MODE
                 int port = Integer.parseInt(parameters.get(0));
                 server = new Server(port);
+                server.setAckPolicy(
+                     Integer.parseInt(cmd.getOptionValue("ack-every", "2"))
+                    ,Integer.parseInt(cmd.getOptionValue("ack-delay", "40"))
+                );
+                server.setMaxMss(Integer.parseInt(cmd.getOptionValue("mss", ""+Packet.MSS)));
+                server.setSaveDir(cmd.getOptionValue("save"));
+                server.setBufferPool(
+                     Integer.parseInt(cmd.getOptionValue("buffers", "8192"))
+                    ,cmd.hasOption("direct-buffers")
+                );
                 server.start();
                 return;
             }
@@ -106,6 +135,10 @@ public class fcntcp
         {
             e.printStackTrace();
         }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage());
+        }
         catch (ParseException e)
         {
             e.printStackTrace();